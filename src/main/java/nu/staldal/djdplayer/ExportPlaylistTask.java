@@ -20,8 +20,6 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
-import android.os.Environment;
-import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.widget.Toast;
@@ -49,9 +47,7 @@ public class ExportPlaylistTask extends AsyncTask<Object,Void,Object[]> {
         long playlistId = (Long)params[1];
         boolean shouldShare = (Boolean)params[2];
 
-        String musicDir = PreferenceManager.getDefaultSharedPreferences(context).getString(
-                SettingsActivity.MUSIC_FOLDER,
-                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC).getAbsolutePath());
+        String musicDir = SettingsSnapshot.get(context).musicFolder;
 
         File file = shouldShare
                 ? new File(context.getExternalCacheDir(), playlistName+".m3u")
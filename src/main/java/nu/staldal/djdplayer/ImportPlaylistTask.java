@@ -20,8 +20,6 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
-import android.os.Environment;
-import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.widget.Toast;
@@ -61,9 +59,7 @@ public class ImportPlaylistTask extends AsyncTask<Uri,Void,CharSequence> {
         }
 
         ArrayList<Long> songIds = new ArrayList<>();
-        String musicDir = PreferenceManager.getDefaultSharedPreferences(context).getString(
-                SettingsActivity.MUSIC_FOLDER,
-                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC).getAbsolutePath());
+        String musicDir = SettingsSnapshot.get(context).musicFolder;
 
         InputStream is = null;
         try {
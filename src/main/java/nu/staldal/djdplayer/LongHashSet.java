@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.util.Arrays;
+
+/**
+ * Set of long values, using open addressing with linear probing in a primitive array,
+ * so that no boxing or per entry allocation is needed.
+ *
+ * Not thread safe.
+ */
+public class LongHashSet {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private boolean[] mUsed;
+    private int mSize;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * @param expectedSize the number of values expected, to avoid rehashing
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new long[capacity];
+        mUsed = new boolean[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(long value) {
+        int mask = mKeys.length - 1;
+        for (int i = hash(value) & mask; mUsed[i]; i = (i + 1) & mask) {
+            if (mKeys[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the value was not already in the set
+     */
+    public boolean add(long value) {
+        int mask = mKeys.length - 1;
+        int i = hash(value) & mask;
+        while (mUsed[i]) {
+            if (mKeys[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = value;
+        mUsed[i] = true;
+        if (++mSize * 2 > mKeys.length) {
+            rehash(mKeys.length * 2);
+        }
+        return true;
+    }
+
+    public void addAll(long[] values) {
+        for (long value : values) {
+            add(value);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mUsed, false);
+        mSize = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = mKeys;
+        boolean[] oldUsed = mUsed;
+        mKeys = new long[capacity];
+        mUsed = new boolean[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldUsed[j]) {
+                int i = hash(oldKeys[j]) & mask;
+                while (mUsed[i]) {
+                    i = (i + 1) & mask;
+                }
+                mKeys[i] = oldKeys[j];
+                mUsed[i] = true;
+            }
+        }
+    }
+
+    static int hash(long value) {
+        // Fibonacci hashing, spreads consecutive ids over the table
+        long h = value * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.util.Arrays;
+
+/**
+ * Map from long to int, using open addressing with linear probing in primitive arrays,
+ * like {@link LongHashSet}.
+ *
+ * Not thread safe.
+ */
+public class LongIntHashMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private boolean[] mUsed;
+    private int mSize;
+
+    public LongIntHashMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * @param expectedSize the number of keys expected, to avoid rehashing
+     */
+    public LongIntHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mUsed = new boolean[capacity];
+    }
+
+    public LongIntHashMap(LongIntHashMap other) {
+        mKeys = other.mKeys.clone();
+        mValues = other.mValues.clone();
+        mUsed = other.mUsed.clone();
+        mSize = other.mSize;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * @return the value for the key, or defaultValue if the key is not in the map
+     */
+    public int get(long key, int defaultValue) {
+        int i = find(key);
+        return i >= 0 ? mValues[i] : defaultValue;
+    }
+
+    public void put(long key, int value) {
+        int mask = mKeys.length - 1;
+        int i = LongHashSet.hash(key) & mask;
+        while (mUsed[i]) {
+            if (mKeys[i] == key) {
+                mValues[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        mUsed[i] = true;
+        if (++mSize * 2 > mKeys.length) {
+            rehash(mKeys.length * 2);
+        }
+    }
+
+    /**
+     * Adds delta to the value for the key (0 if not in the map), and removes the key
+     * if the result is 0.
+     */
+    public void add(long key, int delta) {
+        int i = find(key);
+        if (i < 0) {
+            if (delta != 0) put(key, delta);
+        } else if ((mValues[i] += delta) == 0) {
+            removeAt(i);
+        }
+    }
+
+    public void remove(long key) {
+        int i = find(key);
+        if (i >= 0) {
+            removeAt(i);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mUsed, false);
+        mSize = 0;
+    }
+
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        for (int i = LongHashSet.hash(key) & mask; mUsed[i]; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Backward shift deletion, moves later entries of the probe sequence into the hole
+     * so that no tombstones are needed.
+     */
+    private void removeAt(int hole) {
+        int mask = mKeys.length - 1;
+        mUsed[hole] = false;
+        mSize--;
+        for (int i = (hole + 1) & mask; mUsed[i]; i = (i + 1) & mask) {
+            int home = LongHashSet.hash(mKeys[i]) & mask;
+            // move the entry if the hole is between its home slot and its current slot
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                mKeys[hole] = mKeys[i];
+                mValues[hole] = mValues[i];
+                mUsed[hole] = true;
+                mUsed[i] = false;
+                hole = i;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = mKeys;
+        int[] oldValues = mValues;
+        boolean[] oldUsed = mUsed;
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mUsed = new boolean[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldUsed[j]) {
+                int i = LongHashSet.hash(oldKeys[j]) & mask;
+                while (mUsed[i]) {
+                    i = (i + 1) & mask;
+                }
+                mKeys[i] = oldKeys[j];
+                mValues[i] = oldValues[j];
+                mUsed[i] = true;
+            }
+        }
+    }
+}
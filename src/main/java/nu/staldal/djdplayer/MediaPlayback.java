@@ -15,8 +15,19 @@
  */
 package nu.staldal.djdplayer;
 
+import android.net.Uri;
+
 import java.io.File;
+import java.util.List;
 
+/**
+ * The playback service, used in-process.
+ *
+ * Commands which control the player (play, pause, seek, and changing the current track) are asynchronous:
+ * they return right away, and are carried out in order on the playback thread of the service.
+ * Queue edits are done right away, but any resulting change of the current track is asynchronous.
+ * Playback state is read from {@link #getState()} without blocking.
+ */
 public interface MediaPlayback {
     /**
      * Used to specify whether enqueue() should start playing the new list of files right away,
@@ -26,11 +37,23 @@ public interface MediaPlayback {
     int NEXT = 2;
     int LAST = 3;
 
+    /**
+     * Used to specify that enqueue() with a URI should replace the current playlist, like load().
+     */
+    int REPLACE = 4;
+
     int REPEAT_NONE = 0;
     int REPEAT_CURRENT = 1;
     int REPEAT_ALL = 2;
     int REPEAT_STOPAFTER = 3;
 
+    /**
+     * Shuffle modes, used with shuffle().
+     */
+    int SHUFFLE_RANDOM = 0;
+    int SHUFFLE_SPACE_ARTISTS = 1;
+    int SHUFFLE_SPACE_GENRES = 2;
+
 
     /**
      * Appends a list of tracks to the current playlist.
@@ -44,8 +67,46 @@ public interface MediaPlayback {
      */
     void enqueue(long[] list, int action);
 
+    /**
+     * Like enqueue(long[], int), but with the tracks of a
+     * {@link nu.staldal.djdplayer.provider.MusicContract} members URI.
+     * The tracks are resolved in the background and added to the playlist
+     * in chunks, playback is started as soon as the first chunk is added.
+     *
+     * @param members The members URI
+     * @param action  NOW, NEXT, LAST or REPLACE
+     * @param shuffle Whether to shuffle the tracks, then all of them are resolved before any is added
+     */
+    void enqueue(Uri members, int action, boolean shuffle);
+
+    /**
+     * Interleaves a list of tracks into the playlist after the current track,
+     * currentCount tracks from the playlist at a time and newCount tracks from the list.
+     */
     void interleave(long[] newList, int currentCount, int newCount);
 
+    /**
+     * Interleaves any number of lists of tracks into the playlist after the current track, in place.
+     * In each round, weights[0] tracks are taken from the playlist and then weights[i] tracks
+     * from sources[i - 1]. For example, weights 2, 1, 1 takes two tracks from the playlist
+     * followed by one from each of two sources.
+     *
+     * @param weights one more than sources, all positive
+     */
+    void interleave(long[][] sources, int[] weights);
+
+    /**
+     * Like interleave(long[], int, int), but with the tracks of a
+     * {@link nu.staldal.djdplayer.provider.MusicContract} members URI, which are resolved in the background.
+     */
+    void interleave(Uri members, boolean shuffle, int currentCount, int newCount);
+
+    /**
+     * Like interleave(long[][], int[]), but with the tracks of
+     * {@link nu.staldal.djdplayer.provider.MusicContract} members URIs, which are resolved in the background.
+     */
+    void interleave(Uri[] members, boolean shuffle, int[] weights);
+
     /**
      * Replaces the current playlist with a new list,
      * and prepares for starting playback at the specified
@@ -60,6 +121,18 @@ public interface MediaPlayback {
      */
     void moveQueueItem(int index1, int index2);
 
+    /**
+     * Moves the items at index first to last, inclusive, so that the first of them ends up at index to.
+     * Done as one edit, with one change notification.
+     */
+    void moveQueueBlock(int first, int last, int to);
+
+    /**
+     * Moves the item at index from[i] to index to[i], for each i in order.
+     * Done as one edit, with one change notification.
+     */
+    void moveQueueItems(int[] from, int[] to);
+
     /**
      * Returns the current play list.
      *
@@ -67,8 +140,33 @@ public interface MediaPlayback {
      */
     long[] getQueue();
 
+    /**
+     * Returns the changes to the queue since the given version, or a full copy of the queue
+     * if they are no longer available. Pass 0 to always get a full copy.
+     */
+    QueueChangeLog.Diff getQueueChanges(long sinceVersion);
+
     int getQueueLength();
 
+    /**
+     * Returns the positions of a track in the queue, in ascending order.
+     * Empty if the track is not in the queue.
+     */
+    int[] getQueuePositions(long audioId);
+
+    /**
+     * Returns the time in milliseconds until the track at the given queue position starts,
+     * taking cross fade into account, or -1 if it is not after the current track.
+     * Tracks with unknown duration count as 0.
+     */
+    long getTimeUntil(int position);
+
+    /**
+     * Returns the time in milliseconds until the end of the queue,
+     * taking cross fade into account, or -1 if there is no current track.
+     */
+    long getRemainingTime();
+
     /**
      * Starts playback of a previously opened file.
      */
@@ -113,14 +211,84 @@ public interface MediaPlayback {
      */
     int removeTrack(long id);
 
+    /**
+     * Removes all instances of the tracks with the given ids
+     * from the playlist, in one pass.
+     *
+     * @param ids The ids to be removed
+     * @return how many tracks were removed
+     */
+    int removeTracks(long[] ids);
+
+    /**
+     * Shuffles the queue randomly, the current track stays in place.
+     * Same as shuffle(SHUFFLE_RANDOM, 0).
+     */
     void doShuffle();
 
+    /**
+     * Shuffles the queue, the current track stays in place.
+     *
+     * @param mode    SHUFFLE_RANDOM, SHUFFLE_SPACE_ARTISTS or SHUFFLE_SPACE_GENRES
+     * @param spacing at least this many tracks between two tracks by the same artist or
+     *                in the same genre, as far as possible
+     */
+    void shuffle(int mode, int spacing);
+
+    /**
+     * Removes duplicate tracks from the queue, keeping the last occurrence of each track.
+     * The currently playing and cross-fading entries are always kept. Can be done while playing.
+     */
     void uniqueify();
 
+    /**
+     * Undoes the latest edit of the queue, if any.
+     *
+     * @return whether there was an edit to undo
+     */
+    boolean undo();
+
+    /**
+     * Redoes the latest undone edit of the queue, if any.
+     *
+     * @return whether there was an edit to redo
+     */
+    boolean redo();
+
+    boolean canUndo();
+
+    boolean canRedo();
+
+    /**
+     * Saves the queue, the play position and the seek position as a named snapshot,
+     * replacing any existing snapshot with the same name.
+     */
+    void saveQueueSnapshot(String name);
+
+    /**
+     * Replaces the queue with a named snapshot, and continues from the saved position.
+     * Can be undone like other queue edits. Done asynchronously, and nothing happens
+     * if there is no such snapshot, or it was saved from another card.
+     */
+    void restoreQueueSnapshot(String name);
+
+    /**
+     * @return the names of the saved queue snapshots, in alphabetical order
+     */
+    List<String> getQueueSnapshots();
+
+    void deleteQueueSnapshot(String name);
+
     void setRepeatMode(int repeatmode);
 
     int getRepeatMode();
 
+    /**
+     * Returns an immutable snapshot of the current playback state. Does not block,
+     * and the fields are consistent with each other.
+     */
+    PlaybackSnapshot getState();
+
     /**
      * Returns the rowid of the currently playing file, or -1 if
      * no file is currently playing.
@@ -18,6 +18,7 @@
 package nu.staldal.djdplayer;
 
 import android.annotation.TargetApi;
+import android.app.ActivityManager;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
@@ -35,22 +36,33 @@ import android.media.MediaMetadata;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.os.SystemClock;
-import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.support.v7.app.NotificationCompat;
 import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Provides "background" audio playback capabilities, allowing the
@@ -73,17 +85,60 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
     private static final int PLAYBACKSERVICE_STATUS = 1;
 
     private static final int FOCUSCHANGE = 4;
-    private static final int DUCK = 5;
-    private static final int FADEUP = 6;
+    private static final int FADE_TICK = 5;
     private static final int FADEDOWN = 7;
     private static final int CROSSFADE = 8;
+    private static final int PREPARE_NEXT = 9;
+    private static final int FILL_POOL = 10;
 
-    private static final char HEXDIGITS[] = new char[]{
-            '0', '1', '2', '3',
-            '4', '5', '6', '7',
-            '8', '9', 'a', 'b',
-            'c', 'd', 'e', 'f'
-    };
+    private static final int FLUSH_CHANGES = 1;
+    private static final int SEND_BROADCASTS = 2;
+
+    /**
+     * Change notifications are delayed this long to coalesce bursts of changes...
+     */
+    private static final int NOTIFY_COALESCE_MILLIS = 16;
+
+    /**
+     * ...but never longer than this after the first change.
+     */
+    private static final int NOTIFY_MAX_LATENCY_MILLIS = 100;
+
+    /**
+     * Change broadcasts, which are only for other apps, are sent at most this often.
+     */
+    private static final int BROADCAST_MIN_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Removing duplicates from queues of at least this size is done in a background thread.
+     */
+    private static final int UNIQUEIFY_IN_BACKGROUND_SIZE = 5000;
+
+    /**
+     * The most times to fetch the artists or genres for one spaced shuffle, in case tracks are added meanwhile.
+     */
+    private static final int SHUFFLE_MAX_FETCHES = 3;
+
+    private static final String QUEUE_FILE = "queue";
+    private static final String QUEUE_JOURNAL_FILE = "queue.journal";
+    private static final String QUEUE_SNAPSHOTS_DIR = "queues";
+
+    /**
+     * Write a new queue snapshot when the journal grows beyond this many bytes.
+     */
+    private static final int MAX_JOURNAL_SIZE = 64 * 1024;
+
+    /**
+     * Limits for the undo history of queue edits.
+     */
+    private static final int MAX_UNDO_ENTRIES = 100;
+    private static final int MAX_UNDO_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * Limits for the queue changes kept for consumers to catch up with.
+     */
+    private static final int MAX_QUEUE_CHANGES = 64;
+    private static final int MAX_QUEUE_CHANGE_IDS = 10000;
 
     private static final String[] CURSOR_COLS = new String[]{
             "audio._id AS _id",
@@ -111,22 +166,63 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
      */
     private static final int NEXT_THRESHOLD_MILLIS = 2000;
 
+    /**
+     * Interval for applying the volumes while fading, the volumes themselves are computed from the elapsed time.
+     */
+    private static final int FADE_TICK_MILLIS = 50;
+
+    private static final float DUCK_VOLUME = .2f;
+
+    /**
+     * How long ducking from full volume takes. Coming back up is a fade in.
+     */
+    private static final int DUCK_MILLIS = 200;
+
+    /**
+     * How long after a track has started the tracks around it are prepared, so that preparing them
+     * does not compete with starting it.
+     */
+    private static final int FILL_POOL_DELAY_MILLIS = 2000;
+
+    // Small first chunk, to start playback quickly
+    private static final int FIRST_ENQUEUE_CHUNK = 100;
+    private static final int ENQUEUE_CHUNK = 1000;
+
 
     // Delegates
 
     protected AudioManager mAudioManager;
     protected MediaSession mSession;
     private SharedPreferences mPersistentState;
-    private SharedPreferences mSettings;
-    private final MyMediaPlayer[] mPlayers = new MyMediaPlayer[2];
+    private QueueStore mQueueStore;
+    private QueueJournal mQueueJournal;
+    private QueueSnapshots mQueueSnapshots;
+    // The names of the queue snapshots, including those still being saved or deleted in the background,
+    // read from the directory on first use. Guarded by itself.
+    private final Set<String> mQueueSnapshotNames = new HashSet<>();
+    private boolean mQueueSnapshotNamesLoaded = false;
+    private final ExecutorService mStoreExecutor = Executors.newSingleThreadExecutor();
+    // Single thread, so that tracks enqueued by URI are added in the order they were requested
+    private final ExecutorService mResolveExecutor = Executors.newSingleThreadExecutor();
+    private MyMediaPlayer[] mPlayers; // created in onCreate, the number is a setting
+    private PlayerPool mPool; // the track prepared, or being prepared, on each player
+
+    // The players are controlled from this thread only, so that preparing a track or fetching its metadata
+    // never blocks the UI. Queue edits are done directly by the caller, while holding the monitor, but
+    // the playback thread never blocks on I/O while holding the monitor.
+    private final HandlerThread mPlaybackThread = startPlaybackThread();
 
 
     // Mutable state
 
     private int mRepeatMode = REPEAT_NONE;
-    private long[] mPlayList = new long[0];
-    private int mPlayListLen = 0;
+    private final PlayQueue mPlayList = new PlayQueue();
     private int mPlayPos = -1;
+    private final QueueTimeline mTimeline = new QueueTimeline();
+    private int mTimelineModCount = -1; // the modification of mPlayList the timeline is aligned with
+    private final LongIntHashMap mDurations = new LongIntHashMap(); // known or requested durations
+    private final QueueHistory mQueueHistory = new QueueHistory(MAX_UNDO_ENTRIES, MAX_UNDO_BYTES);
+    private final QueueChangeLog mQueueChanges = new QueueChangeLog(MAX_QUEUE_CHANGES, MAX_QUEUE_CHANGE_IDS);
 
     private String mGenreName = null;
     private long mGenreId = -1;
@@ -138,15 +234,44 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
     private File mFolder = null;
     private String mTrackName = null;
 
+    // Published at discontinuities only, clients extrapolate from them
+    private long mDuration = -1;
+    private long mPosition = -1;
+    private long mPositionTime = 0;
+    private float mPositionSpeed = 0f;
+
     private int mServiceStartId = -1;
     private boolean mServiceInUse = false;
     private volatile boolean mIsSupposedToBePlaying = false;
     private boolean mQueueIsSaveable = true;
     private volatile boolean mPausedByTransientLossOfFocus = false; // Used to track what type of audio focus loss caused the playback to pause
-    private float[] mCurrentVolume = new float[2];
+    private VolumeFader mFader; // only used on the playback thread
     private volatile int mCurrentPlayer;
-    private volatile int mNextPlayer;
-    private int mCardId; // Used to distinguish between different cards when saving/restoring playlists.
+    private volatile int mNextPlayer; // used for the next track when cross-fading or gapless
+    // The state of the players for other threads, updated by publishState() on the playback thread
+    private volatile boolean mCurrentReady = false;
+    private volatile boolean mCrossfading = false;
+    private volatile long mPreparedNextId = -1; // the track prepared on the next player, or -1
+    private volatile int mAudioSessionId = 0; // of the current player
+    // Used to distinguish between different cards when saving/restoring playlists.
+    // Taken from the saved queue at start, and checked against the media provider in the background.
+    private volatile int mCardId = -1;
+    private int mReloadCount = 0; // to detect that a queue restore has been superseded by a later one
+    private int mRestoreRequest = 0; // the request to open the restored track, until it has been done
+    private long mRestoreSeek = 0;
+    private boolean mPlayWhenRestored = false;
+    private int mOpenRequest = 0; // Only the latest request to open the current track is carried out
+    private long mQueueGeneration = 0;
+    private long mJournalSize = 0;
+
+    private volatile PlaybackSnapshot mState = PlaybackSnapshot.EMPTY;
+    private long mStateVersion = 0;
+    private boolean mQueueChangePending = false;
+    private boolean mMetaChangePending = false;
+    private boolean mPlayStateChangePending = false;
+    private long mFirstPendingChange = -1;
+    private int mBroadcastsPending = 0; // PlaybackEvents flags
+    private long mLastBroadcast = -BROADCAST_MIN_INTERVAL_MILLIS;
 
 
     // Local Binder pattern
@@ -170,35 +295,34 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
 
         mPersistentState = getSharedPreferences(getPackageName(), Context.MODE_PRIVATE);
 
-        mSettings = PreferenceManager.getDefaultSharedPreferences(this);
-
-        mCardId = fetchCardId();
+        mQueueStore = new QueueStore(new File(getFilesDir(), QUEUE_FILE));
+        mQueueJournal = new QueueJournal(new File(getFilesDir(), QUEUE_JOURNAL_FILE));
+        mQueueSnapshots = new QueueSnapshots(new File(getFilesDir(), QUEUE_SNAPSHOTS_DIR));
 
         IntentFilter iFilter = new IntentFilter();
         iFilter.addAction(Intent.ACTION_MEDIA_EJECT);
         iFilter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        iFilter.addAction(Intent.ACTION_MEDIA_SCANNER_FINISHED);
         iFilter.addDataScheme("file");
         registerReceiver(mUnmountReceiver, iFilter);
 
         // Needs to be done in this thread, since otherwise ApplicationContext.getPowerManager() crashes.
-        mPlayers[0] = new MyMediaPlayer(this, new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-                handlePlayerCallback(0, msg);
-            }
-        });
-        mPlayers[1] = new MyMediaPlayer(this, new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-                handlePlayerCallback(1, msg);
-            }
-        });
+        // The MediaPlayers themselves are created on the playback thread, where their callbacks then come.
+        mPlayers = new MyMediaPlayer[numPlayers()];
+        for (int i = 0; i < mPlayers.length; i++) {
+            final int player = i;
+            mPlayers[i] = new MyMediaPlayer(this, new Handler(mPlaybackThread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    handlePlayerCallback(player, msg);
+                }
+            });
+        }
+        mPool = new PlayerPool(mPlayers.length);
+        mFader = new VolumeFader(mPlayers.length);
         mCurrentPlayer = 0;
         mNextPlayer = 1;
 
-        mCurrentVolume[0] = 1.0f;
-        mCurrentVolume[1] = 1.0f;
-
         reloadQueue();
 
         IntentFilter actionFilter = new IntentFilter();
@@ -222,6 +346,27 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
         mDelayedStopHandler.sendMessageDelayed(msg, IDLE_DELAY_MILLIS);
     }
 
+    private static HandlerThread startPlaybackThread() {
+        HandlerThread thread = new HandlerThread("Playback", Process.THREAD_PRIORITY_AUDIO);
+        thread.start();
+        return thread;
+    }
+
+    private boolean isOnPlaybackThread() {
+        return Looper.myLooper() == mPlaybackThread.getLooper();
+    }
+
+    /**
+     * Runs a command on the playback thread: right away if already on it, otherwise asynchronously.
+     */
+    private void onPlaybackThread(Runnable command) {
+        if (isOnPlaybackThread()) {
+            command.run();
+        } else {
+            mPlaybackHander.post(command);
+        }
+    }
+
     @SuppressWarnings("unused")
     protected void enrichActionFilter(IntentFilter actionFilter) { }
 
@@ -305,7 +450,7 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
 
         // If there is a playlist but playback is paused, then wait a while
         // before stopping the service, so that pause/resume isn't slow.
-        if (mPlayListLen > 0) {
+        if (mPlayList.size() > 0) {
             Message msg = mDelayedStopHandler.obtainMessage();
             mDelayedStopHandler.sendMessageDelayed(msg, IDLE_DELAY_MILLIS);
             return true;
@@ -325,23 +470,37 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
             Log.e(TAG, "Service being destroyed while still playing.");
         }
 
+        flushChanges();
+        sendBroadcasts(true);
+        mNotifyHandler.removeCallbacksAndMessages(null);
+        PlaybackEvents.reset();
+
         additionalDestroy();
 
         if (mSession != null) {
             releaseMediaSession();
         }
 
-        for (MyMediaPlayer player : mPlayers) player.release();
-
         mAudioManager.abandonAudioFocus(mAudioFocusListener);
 
         // make sure there aren't any other messages coming
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mPlaybackHander.removeCallbacksAndMessages(null);
 
+        // after any command in progress
+        mPlaybackHander.post(() -> {
+            for (MyMediaPlayer player : mPlayers) player.release();
+            mPlaybackThread.quit();
+        });
+
         unregisterReceiver(mIntentReceiver);
         unregisterReceiver(mUnmountReceiver);
 
+        // pending queue writes are still completed
+        mStoreExecutor.shutdown();
+        mResolveExecutor.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+
         super.onDestroy();
     }
 
@@ -352,20 +511,20 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
 
     protected void additionalDestroy() { }
 
-    private synchronized void handlePlayerCallback(int player, Message msg) {
+    /**
+     * Runs on the playback thread.
+     */
+    private void handlePlayerCallback(int player, Message msg) {
         switch (msg.what) {
             case MyMediaPlayer.SERVER_DIED:
                 Log.d(TAG, "MediaPlayer died: " + player);
+                mPool.set(player, -1);
                 if (mIsSupposedToBePlaying) {
                     next();
                 } else {
                     // the server died when we were idle, so just reopen the same song
                     // (it will start again from the beginning though when the user restarts)
-                    if (mPlayListLen > 0) {
-                        if (prepare(mPlayList[mPlayPos])) {
-                            fetchMetadata(mPlayList[mPlayPos]);
-                        }
-                    }
+                    openCurrentTrack(false, 0);
                 }
                 break;
 
@@ -374,10 +533,25 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
                 mPlayers[player].releaseWakeLock();
                 break;
 
+            case MyMediaPlayer.PREPARED:
+                if (msg.arg1 != 0) {
+                    Log.d(TAG, "Song " + mPool.get(player) + " is ready on player " + player);
+                    mPool.setReady(player);
+                    if (player != mCurrentPlayer && !mPlayers[mNextPlayer].isPlaying()
+                            && mPool.get(player) == nextTrack()) {
+                        useAsNext(player);
+                    }
+                    linkNext();
+                } else {
+                    Log.w(TAG, "Unable to prepare song " + mPool.get(player) + " on player " + player);
+                    mPool.set(player, -1);
+                }
+                publishState();
+                break;
+
 
             case MyMediaPlayer.TRACK_ENDED:
-                int fadeSeconds = Integer.parseInt(mSettings.getString(SettingsActivity.FADE_SECONDS, "0"));
-                mPlaybackHander.removeMessages(DUCK);
+                int fadeSeconds = SettingsSnapshot.get(this).fadeSeconds;
                 mPlaybackHander.removeMessages(FADEDOWN);
                 mPlaybackHander.removeMessages(CROSSFADE);
                 switch (mRepeatMode) {
@@ -394,7 +568,7 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
                         Log.d(TAG, "MediaPlayer track ended, REPEAT_CURRENT: " + player);
                         seek(0);
                         if (fadeSeconds > 0) {
-                            mCurrentVolume[mCurrentPlayer] = 0f;
+                            setVolume(mCurrentPlayer, 0f);
                         }
                         play();
                         break;
@@ -402,59 +576,70 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
                     case REPEAT_NONE:
                     case REPEAT_ALL:
                         Log.d(TAG, "MediaPlayer track ended, REPEAT_NONE/REPEAT_ALL: " + player);
-                        if (mPlayListLen <= 0) {
-                            if (mSession != null) {
-                                deactivateMediaSession();
-                            }
-                            gotoIdleState();
-                            notifyChange(PLAYSTATE_CHANGED);
-                            break;
-                        }
-
-                        if (mPlayPos >= mPlayListLen - 1) {  // we're at the end of the list
-                            if (mRepeatMode == REPEAT_NONE) {
+                        synchronized (this) {
+                            if (mPlayList.size() <= 0 || (mPlayPos >= mPlayList.size() - 1 && mRepeatMode == REPEAT_NONE)) {
+                                // nothing more to play
                                 if (mSession != null) {
                                     deactivateMediaSession();
                                 }
                                 gotoIdleState();
                                 notifyChange(PLAYSTATE_CHANGED);
                                 break;
-                            } else {
-                                mPlayPos = 0;
                             }
-                        } else {
-                            mPlayPos++;
-                        }
 
-                        if (mPlayers[mCurrentPlayer].isInitialized()) {
-                            mPlayers[mCurrentPlayer].stop();
+                            if (mPlayPos >= mPlayList.size() - 1) {  // we're at the end of the list
+                                mPlayPos = 0;
+                            } else {
+                                mPlayPos++;
+                            }
                         }
 
-                        swapPlayers();
+                        // if linked, the framework has already started the next player
+                        boolean gapless = mPlayers[mCurrentPlayer].hasNext();
+                        // the ended player keeps its track prepared, as the previous track
+                        mPlayers[mCurrentPlayer].setNext(null);
 
-                        if (!mPlayers[mCurrentPlayer].isInitialized()) {
-                            while (!prepare(mPlayList[mPlayPos])) {
-                                if (mPlayPos >= mPlayListLen - 1) { // we're at the end of the list
-                                    Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
-                                    break;
-                                } else {
-                                    mPlayPos++;
+                        int prepared = mPool.find(currentTrack(), mNextPlayer, -1, false);
+                        if (prepared >= 0) {
+                            setCurrentPlayer(prepared);
+                            if (!mPlayers[mCurrentPlayer].isPlaying()) {
+                                mPlayers[mCurrentPlayer].seek(0);
+                            }
+                        } else {
+                            Log.d(TAG, "Next song not prepared ahead");
+                            int victim = mPool.victim(wantedTracks(), 0);
+                            setCurrentPlayer(victim >= 0 ? victim : mNextPlayer);
+                            // prepared without holding the monitor, so the queue may change meanwhile
+                            while (!prepare(currentTrack())) {
+                                synchronized (this) {
+                                    if (mPlayPos >= mPlayList.size() - 1) { // we're at the end of the list
+                                        Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
+                                        break;
+                                    } else {
+                                        mPlayPos++;
+                                    }
                                 }
                             }
                         }
 
                         if (!mPlayers[mCurrentPlayer].isPlaying()) {
                             if (fadeSeconds > 0) {
-                                mCurrentVolume[mCurrentPlayer] = 0f;
-                                mPlayers[mCurrentPlayer].setVolume(mCurrentVolume[mCurrentPlayer]);
+                                setVolume(mCurrentPlayer, 0f);
                             }
                             Log.d(TAG, "Starting playback");
                             mPlayers[mCurrentPlayer].start();
 
-                            mPlaybackHander.sendMessage(mPlaybackHander.obtainMessage(FADEUP, mCurrentPlayer, 0));
+                            fadeIn(mCurrentPlayer);
+                        }
+                        if (mPlayers[mCurrentPlayer].isPlaying()) {
+                            Log.i(TAG, "Transition gap " + Math.max(0,
+                                    mPlayers[mCurrentPlayer].startTime() - mPlayers[player].completionTime())
+                                    + " ms" + (gapless ? ", gapless" : ""));
                         }
 
-                        fetchMetadata(mPlayList[mPlayPos]);
+                        updatePosition();
+                        scheduleFillPool();
+                        fetchMetadata(currentTrack());
                         startForeground(PLAYBACKSERVICE_STATUS, buildNotification());
                         notifyChange(META_CHANGED);
                         break;
@@ -463,50 +648,39 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
         }
     }
 
-    private void swapPlayers() {
-        int tmp = mCurrentPlayer;
-        mCurrentPlayer = mNextPlayer;
-        mNextPlayer = tmp;
+    /**
+     * Makes the player the current one. If it was the next one, the previous current one becomes the next one.
+     */
+    private void setCurrentPlayer(int player) {
+        if (player == mNextPlayer) {
+            mNextPlayer = mCurrentPlayer;
+        }
+        mCurrentPlayer = player;
+    }
+
+    /**
+     * Makes the player, which is not the current one, the next one.
+     */
+    private void useAsNext(int player) {
+        if (player != mNextPlayer) {
+            mPlayers[mCurrentPlayer].setNext(null);
+            mNextPlayer = player;
+        }
     }
 
-    private final Handler mPlaybackHander = new Handler() {
+    private final Handler mPlaybackHander = new Handler(mPlaybackThread.getLooper()) {
         @Override
         public void handleMessage(Message msg) {
-            int fadeSeconds = Integer.parseInt(mSettings.getString(SettingsActivity.FADE_SECONDS, "0"));
+            int fadeSeconds = SettingsSnapshot.get(MediaPlaybackService.this).fadeSeconds;
 
             switch (msg.what) {
-                case DUCK:
-                    // Log.v(TAG, "handleMessage DUCK: " + msg.arg1);
-                    mCurrentVolume[msg.arg1] -= .05f;
-                    if (mCurrentVolume[msg.arg1] > .2f) {
-                        mPlaybackHander.sendMessageDelayed(mPlaybackHander.obtainMessage(DUCK, msg.arg1, 0), 10);
-                    } else {
-                        mCurrentVolume[msg.arg1] = .2f;
-                    }
-                    mPlayers[msg.arg1].setVolume(mCurrentVolume[msg.arg1]);
+                case FADE_TICK:
+                    applyVolumes();
                     break;
 
                 case FADEDOWN:
-                    // Log.v(TAG, "handleMessage FADEDOWN: " + msg.arg1);
-                    mCurrentVolume[msg.arg1] -= .01f / Math.max(fadeSeconds, 1);
-                    if (mCurrentVolume[msg.arg1] > 0.0f) {
-                        mPlaybackHander.sendMessageDelayed(mPlaybackHander.obtainMessage(FADEDOWN, msg.arg1, 0), 10);
-                    } else {
-                        mCurrentVolume[msg.arg1] = 0.0f;
-                    }
-                    mPlayers[msg.arg1].setVolume(mCurrentVolume[msg.arg1]);
-                    break;
-
-                case FADEUP:
-                    // Log.v(TAG, "handleMessage FADEUP: " + msg.arg1);
-                    mCurrentVolume[msg.arg1] += .01f / Math.max(fadeSeconds, 1);
-                    if (mCurrentVolume[msg.arg1] < 1.0f) {
-                        mPlaybackHander.sendMessageDelayed(mPlaybackHander.obtainMessage(FADEUP, msg.arg1, 0), 10);
-                    } else {
-                        mCurrentVolume[msg.arg1] = 1.0f;
-                        scheduleFadeOut();
-                    }
-                    mPlayers[msg.arg1].setVolume(mCurrentVolume[msg.arg1]);
+                    Log.d(TAG, "handleMessage FADEDOWN: " + msg.arg1);
+                    fadeOut(msg.arg1);
                     break;
 
                 case FOCUSCHANGE:
@@ -523,10 +697,9 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
                             break;
                         case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
                             Log.d(TAG, "AudioFocus: received AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK");
-                            mPlaybackHander.removeMessages(FADEUP);
                             mPlaybackHander.removeMessages(FADEDOWN);
                             mPlaybackHander.removeMessages(CROSSFADE);
-                            mPlaybackHander.sendMessage(mPlaybackHander.obtainMessage(DUCK, mCurrentPlayer, 0));
+                            duck(mCurrentPlayer);
                             break;
                         case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
                             Log.d(TAG, "AudioFocus: received AUDIOFOCUS_LOSS_TRANSIENT");
@@ -545,14 +718,12 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
 
                             if (!isPlaying() && mPausedByTransientLossOfFocus) {
                                 mPausedByTransientLossOfFocus = false;
-                                mCurrentVolume[mCurrentPlayer] = 0f;
-                                mPlayers[mCurrentPlayer].setVolume(mCurrentVolume[mCurrentPlayer]);
-                                play(); // also queues a fade-in
+                                setVolume(mCurrentPlayer, 0f);
+                                play(); // also starts a fade-in
                             } else if (isPlaying()) {
-                                mPlaybackHander.removeMessages(DUCK);
                                 mPlaybackHander.removeMessages(FADEDOWN);
                                 mPlaybackHander.removeMessages(CROSSFADE);
-                                mPlaybackHander.sendMessage(mPlaybackHander.obtainMessage(FADEUP, mCurrentPlayer, 0));
+                                fadeIn(mCurrentPlayer); // back from ducking, over the fade time as before
                             }
                             break;
                         default:
@@ -562,27 +733,48 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
 
                 case CROSSFADE:
                     Log.d(TAG, "handleMessage CROSSFADE");
-                    if (!mPlayers[mNextPlayer].isInitialized()) {
-                        if ((mRepeatMode == REPEAT_NONE || mRepeatMode == REPEAT_ALL) && (mPlayPos + 1) < mPlayListLen) {
-                            long nextId = mPlayList[mPlayPos + 1];
-                            Log.d(TAG, "Preparing next song " + nextId);
-                            mPlayers[mNextPlayer].prepare(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/" + String.valueOf(nextId));
+                    long nextId = -1;
+                    synchronized (MediaPlaybackService.this) {
+                        if ((mRepeatMode == REPEAT_NONE || mRepeatMode == REPEAT_ALL) && (mPlayPos + 1) < mPlayList.size()) {
+                            nextId = mPlayList.get(mPlayPos + 1);
+                        }
+                    }
+                    if (nextId >= 0) {
+                        int prepared = mPool.find(nextId, mNextPlayer, mCurrentPlayer, false);
+                        if (prepared >= 0) {
+                            useAsNext(prepared);
+                            mPlayers[mNextPlayer].seek(0);
+                        } else {
+                            Log.w(TAG, "Next song not prepared ahead, preparing " + nextId);
+                            int victim = mPool.victim(wantedTracks(), 1, mCurrentPlayer);
+                            useAsNext(victim >= 0 ? victim : mNextPlayer);
+                            preparePlayer(mNextPlayer, nextId);
                         }
                     }
-                    if (mPlayers[mNextPlayer].isInitialized()) {
+                    if (nextId >= 0 && mPool.isReady(mNextPlayer)) {
                         if (fadeSeconds > 0) {
-                            mCurrentVolume[mNextPlayer] = 0f;
-                            mPlayers[mNextPlayer].setVolume(mCurrentVolume[mNextPlayer]);
+                            setVolume(mNextPlayer, 0f);
                         }
                         Log.d(TAG, "Cross-fading");
                         mPlayers[mNextPlayer].start();
 
-                        mPlaybackHander.sendMessage(mPlaybackHander.obtainMessage(FADEUP, mNextPlayer, 0));
+                        fadeIn(mNextPlayer);
 
                         notifyChange(META_CHANGED);
                     }
 
                     break;
+
+                case PREPARE_NEXT:
+                    // arg1 is 1 to only prepare the next track again if it has been prepared ahead
+                    if (msg.arg1 == 0 || mPool.get(mNextPlayer) >= 0) {
+                        prepareNext();
+                    }
+                    break;
+
+                case FILL_POOL:
+                    fillPool();
+                    break;
             }
         }
     };
@@ -664,11 +856,14 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
                 mQueueIsSaveable = false;
                 closeExternalStorageFiles();
             } else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
-                mCardId = fetchCardId();
-                reloadQueue();
                 mQueueIsSaveable = true;
+                mDurations.clear();
+                mTimelineModCount = -1;
+                reloadQueue();
                 notifyChange(QUEUE_CHANGED);
                 notifyChange(META_CHANGED);
+            } else if (action.equals(Intent.ACTION_MEDIA_SCANNER_FINISHED)) {
+                retryRestoredTrack();
             }
         }
     };
@@ -687,307 +882,872 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
     private final OnAudioFocusChangeListener mAudioFocusListener =
             focusChange -> mPlaybackHander.obtainMessage(FOCUSCHANGE, focusChange, 0).sendToTarget();
 
-    private void saveQueue(boolean full) {
+    private synchronized void saveQueue(boolean full) {
         if (!mQueueIsSaveable) {
             return;
         }
 
-        Editor ed = mPersistentState.edit();
-        //long start = System.currentTimeMillis();
         if (full) {
-            StringBuilder q = new StringBuilder();
-
-            // The current playlist is saved as a list of "reverse hexadecimal"
-            // numbers, which we can generate faster than normal decimal or
-            // hexadecimal numbers, which in turn allows us to save the playlist
-            // more often without worrying too much about performance.
-            // (saving the full state takes about 40 ms under no-load conditions
-            // on the phone)
-            int len = mPlayListLen;
-            for (int i = 0; i < len; i++) {
-                long n = mPlayList[i];
-                if (n == 0) {
-                    q.append("0;");
-                } else if (n > 0) {
-                    while (n != 0) {
-                        int digit = (int) (n & 0xf);
-                        n >>>= 4;
-                        q.append(HEXDIGITS[digit]);
-                    }
-                    q.append(";");
-                }
-            }
-            ed.putString(SettingsActivity.PLAYQUEUE, q.toString());
-            ed.putInt(SettingsActivity.CARDID, mCardId);
+            compactQueue();
         }
+
+        // The queue itself is stored in separate files,
+        // so this is cheap enough to do on every track change.
+        Editor ed = mPersistentState.edit();
         ed.putInt(SettingsActivity.CURPOS, mPlayPos);
-        if (mPlayers[mCurrentPlayer].isInitialized()) {
-            ed.putLong(SettingsActivity.SEEKPOS, mPlayers[mCurrentPlayer].currentPosition());
+        long seek = position();
+        if (seek >= 0) {
+            ed.putLong(SettingsActivity.SEEKPOS, seek);
         }
         ed.putInt(SettingsActivity.REPEATMODE, mRepeatMode);
         ed.apply();
     }
 
-    private void reloadQueue() {
-        String q = null;
-
-        int id = mCardId;
-        if (mPersistentState.contains(SettingsActivity.CARDID)) {
-            id = mPersistentState.getInt(SettingsActivity.CARDID, ~mCardId);
-        }
-        if (id == mCardId) {
-            // Only restore the saved playlist if the card is still
-            // the same one as when the playlist was saved
-            q = mPersistentState.getString(SettingsActivity.PLAYQUEUE, "");
-        }
-        int qlen = q != null ? q.length() : 0;
-        if (qlen > 1) {
-            int plen = 0;
-            int n = 0;
-            int shift = 0;
-            for (int i = 0; i < qlen; i++) {
-                char c = q.charAt(i);
-                if (c == ';') {
-                    ensurePlayListCapacity(plen + 1);
-                    mPlayList[plen] = n;
-                    plen++;
-                    n = 0;
-                    shift = 0;
-                } else {
-                    if (c >= '0' && c <= '9') {
-                        n += ((c - '0') << shift);
-                    } else if (c >= 'a' && c <= 'f') {
-                        n += ((10 + c - 'a') << shift);
-                    } else {
-                        // bogus playlist data
-                        plen = 0;
-                        break;
-                    }
-                    shift += 4;
-                }
-            }
-            mPlayListLen = plen;
-
-            int pos = mPersistentState.getInt(SettingsActivity.CURPOS, 0);
-            if (pos < 0 || pos >= mPlayListLen) {
-                // The saved playlist is bogus, discard it
-                mPlayListLen = 0;
-                return;
-            }
-            mPlayPos = pos;
-
-            // When reloadQueue is called in response to a card-insertion,
-            // we might not be able to query the media provider right away.
-            // To deal with this, try querying for the current file, and if
-            // that fails, wait a while and try again. If that too fails,
-            // assume there is a problem and don't restore the state.
-            Cursor crsr = MusicUtils.query(this,
-                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                    new String[]{"_id"}, "_id=" + mPlayList[mPlayPos], null, null);
-            if (crsr == null || crsr.getCount() == 0) {
-                // wait a bit and try again
-                SystemClock.sleep(3000);
-                crsr = getContentResolver().query(
-                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                        CURSOR_COLS, "_id=" + mPlayList[mPlayPos], null, null);
-            }
-            if (crsr != null) {
-                crsr.close();
-            }
-
-            if (mPlayListLen > 0) {
-                stop();
-                if (prepare(mPlayList[mPlayPos])) {
-                    fetchMetadata(mPlayList[mPlayPos]);
-                } else {
-                    mPlayListLen = 0;
-                    return;
-                }
-            }
-
-            long seekpos = mPersistentState.getLong(SettingsActivity.SEEKPOS, 0);
-            seek(seekpos >= 0 && seekpos < duration() ? seekpos : 0);
+    /**
+     * Writes a snapshot of the whole queue in the background, and starts a new journal for it.
+     * Holds the monitor, so that the snapshot and the journal records are queued in the order of the edits.
+     */
+    private synchronized void compactQueue() {
+        if (!mQueueIsSaveable) {
+            return;
+        }
 
-            int repmode = mPersistentState.getInt(SettingsActivity.REPEATMODE, REPEAT_NONE);
-            if (repmode != REPEAT_ALL && repmode != REPEAT_CURRENT) {
-                repmode = REPEAT_NONE;
+        final long[] queue = mPlayList.toArray();
+        final int cardId = mCardId;
+        final long generation = ++mQueueGeneration;
+        mJournalSize = 0;
+        mStoreExecutor.execute(() -> {
+            try {
+                mQueueStore.save(queue, cardId, generation);
+                mQueueJournal.reset(generation);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to save play queue", e);
             }
-            mRepeatMode = repmode;
-        }
+        });
     }
 
     /**
-     * Called when we receive a ACTION_MEDIA_EJECT notification.
+     * Appends a queue edit to the journal in the background. When the journal has grown too large,
+     * a new snapshot is written instead.
      */
-    private void closeExternalStorageFiles() {
-        // stop playback and clean up if the SD card is going to be unmounted.
-        stop();
-        if (mSession != null) {
-            deactivateMediaSession();
+    private synchronized void journalQueueEdit(final ByteBuffer record) {
+        if (!mQueueIsSaveable) {
+            return;
         }
-        gotoIdleState();
-        notifyChange(QUEUE_CHANGED);
-        notifyChange(META_CHANGED);
+
+        mJournalSize += record.remaining();
+        if (mJournalSize > MAX_JOURNAL_SIZE) {
+            compactQueue();
+            return;
+        }
+
+        mStoreExecutor.execute(() -> {
+            try {
+                mQueueJournal.append(record);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to journal play queue", e);
+            }
+        });
     }
 
     /**
-     * Notify the change-receivers that something has changed.
-     * The intent that is sent contains the following data
-     * for the currently playing track:
-     * "id" - Long: the database row ID
-     * "artist" - String: the name of the artist
-     * "album" - String: the name of the album
-     * "genre" - String: the name of the genre
-     * "track" - String: the name of the track
-     * "playing" - Boolean: is playing now
-     * The intent has an action that is one of
-     * "nu.staldal.djdplayer.metachanged"
-     * "nu.staldal.djdplayer.queuechanged",
-     * "nu.staldal.djdplayer.playstatechanged"
-     * respectively indicating that a new track has
-     * started playing, that the playback queue has
-     * changed, that playback has stopped because
-     * the last file in the list has been played,
-     * or that the play-state changed (paused/resumed).
+     * Adds a queue edit which has just been done to the undo history.
+     *
+     * @param positionBefore the play position before the edit
      */
-    private void notifyChange(String what) {
-        Intent i = new Intent(what);
-        i.putExtra("id", getAudioId());
-        i.putExtra("artist", getArtistName());
-        i.putExtra("album", getAlbumName());
-        i.putExtra("genre", getGenreName());
-        i.putExtra("track", getTrackName());
-        i.putExtra("playing", isPlaying());
-        sendStickyBroadcast(i);
-
-        if (what.equals(QUEUE_CHANGED)) {
-            saveQueue(true);
-        } else {
-            saveQueue(false);
-        }
+    private void rememberQueueEdit(ByteBuffer edit, ByteBuffer inverse, int positionBefore) {
+        mQueueHistory.add(new QueueHistory.Entry(edit, inverse, positionBefore, mPlayPos));
+    }
 
-        extraNotifyChange(what);
+    @Override
+    public synchronized boolean undo() {
+        QueueHistory.Entry entry = mQueueHistory.undo();
+        return entry != null && applyQueueHistory(entry.inverse, entry.positionBefore);
     }
 
-    @SuppressWarnings("unused")
-    protected void extraNotifyChange(String what) { }
+    @Override
+    public synchronized boolean redo() {
+        QueueHistory.Entry entry = mQueueHistory.redo();
+        return entry != null && applyQueueHistory(entry.edit, entry.positionAfter);
+    }
 
-    private void ensurePlayListCapacity(int size) {
-        if (size > mPlayList.length) {
-            // reallocate at 2x requested size so we don't
-            // need to grow and copy the array for every
-            // insert
-            long[] newlist = new long[size * 2];
-            System.arraycopy(mPlayList, 0, newlist, 0, mPlayList.length);
-            mPlayList = newlist;
-        }
-        // FIXME: shrink the array when the needed size is much smaller
-        // than the allocated size
+    @Override
+    public synchronized boolean canUndo() {
+        return mQueueHistory.canUndo();
     }
 
-    // insert the list of songs at the specified position in the playlist
-    private void addToPlayList(long[] list, int position) {
-        addToPlaylistInternal(list, position);
-        updatePlaylist();
+    @Override
+    public synchronized boolean canRedo() {
+        return mQueueHistory.canRedo();
     }
 
-    private void addToPlaylistInternal(long[] list, int position) {
-        if (position < 0) { // overwrite
-            mPlayListLen = 0;
-            position = 0;
-        }
-        ensurePlayListCapacity(mPlayListLen + list.length);
-        if (position > mPlayListLen) {
-            position = mPlayListLen;
+    /**
+     * Applies an edit from the undo history, and keeps playing the current track if it is still in the queue,
+     * at the occurrence closest to position. Otherwise moves on to the track at position.
+     */
+    private boolean applyQueueHistory(ByteBuffer record, int position) {
+        long currentId = mPlayPos >= 0 && mPlayPos < mPlayList.size() ? mPlayList.get(mPlayPos) : -1;
+        try {
+            QueueJournal.applyRecord(mPlayList, record, mQueueChanges);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to apply queue edit from history", e);
+            mQueueHistory.clear();
+            return false;
         }
+        journalQueueEdit(record.duplicate());
 
-        // move part of list after insertion point
-        int tailsize = mPlayListLen - position;
-        if (tailsize > 0) System.arraycopy(mPlayList, position, mPlayList, position + list.length, tailsize);
-
-        // copy list into playlist
-        System.arraycopy(list, 0, mPlayList, position, list.length);
-        mPlayListLen += list.length;
+        int[] positions = mPlayList.positionsOf(currentId);
+        if (positions.length > 0) {
+            int closest = positions[0];
+            for (int p : positions) {
+                if (Math.abs(p - position) < Math.abs(closest - position)) closest = p;
+            }
+            mPlayPos = closest;
+        } else {
+            mPlayPos = Math.max(0, Math.min(position, mPlayList.size() - 1));
+            gotoTrackAfterRemoved();
+        }
+        updatePlaylist();
+        return true;
     }
 
-    private void updatePlaylist() {
-        if (mPlayListLen == 0) {
-            resetMetadata();
-            notifyChange(META_CHANGED);
+    @Override
+    public void saveQueueSnapshot(String name) {
+        final QueueSnapshots.Snapshot snapshot;
+        synchronized (this) {
+            snapshot = new QueueSnapshots.Snapshot(name, mPlayList.toArray(), mCardId, mPlayPos, Math.max(position(), 0));
         }
-        notifyChange(QUEUE_CHANGED);
+        synchronized (mQueueSnapshotNames) {
+            loadQueueSnapshotNames();
+            mQueueSnapshotNames.add(name);
+        }
+        mStoreExecutor.execute(() -> {
+            try {
+                mQueueSnapshots.save(snapshot);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to save queue snapshot " + snapshot.name, e);
+            }
+        });
     }
 
     @Override
-    public synchronized void enqueue(long[] list, int action) {
-        if (list.length == 0) return;
-
-        if ((action == NEXT || action == NOW) && mPlayPos + 1 < mPlayListLen) {
-            addToPlayList(list, mPlayPos + 1);
-            if (action == NOW) {
-                stop();
-                mPlayPos++;
-                prepareAndPlay(mPlayList[mPlayPos]);
-                return;
+    public void restoreQueueSnapshot(final String name) {
+        // After any pending save of the same snapshot
+        mStoreExecutor.execute(() -> {
+            try {
+                final QueueSnapshots.Snapshot snapshot = mQueueSnapshots.load(name);
+                if (snapshot != null && snapshot.ids.length > 0) {
+                    mPlaybackHander.post(() -> restoreQueueSnapshot(snapshot));
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to load queue snapshot " + name, e);
             }
-        } else {
-            addToPlayList(list, Integer.MAX_VALUE);
-            if (action == NOW) {
-                stop();
-                mPlayPos = mPlayListLen - list.length;
-                prepareAndPlay(mPlayList[mPlayPos]);
+        });
+    }
+
+    private void restoreQueueSnapshot(QueueSnapshots.Snapshot snapshot) {
+        synchronized (this) {
+            if (snapshot.cardId != mCardId) {
                 return;
             }
+            addToPlayList(snapshot.ids, -1);
+            mPlayPos = snapshot.position >= 0 && snapshot.position < snapshot.ids.length ? snapshot.position : 0;
         }
-        if (mPlayPos < 0) {
-            stop();
-            mPlayPos = 0;
-            prepareAndPlay(mPlayList[mPlayPos]);
-        }
+        openCurrentTrack(isPlaying(), snapshot.seek);
     }
 
-    private void prepareAndPlay(long audioId) {
-        if (prepare(audioId)) {
-            fetchMetadata(audioId);
-            play();
-            notifyChange(META_CHANGED);
-        } else {
-            Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
+    @Override
+    public List<String> getQueueSnapshots() {
+        synchronized (mQueueSnapshotNames) {
+            loadQueueSnapshotNames();
+            List<String> names = new ArrayList<>(mQueueSnapshotNames);
+            Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+            return names;
         }
     }
 
     @Override
-    public synchronized void interleave(long[] newList, int currentCount, int newCount) {
-        long[] destList = new long[mPlayListLen + newList.length];
-
-        int destI = 0;
-        int currentI = 0;
-        int newI = 0;
-        while (destI < destList.length) {
-            for (int i = 0; i < currentCount; i++) {
-                if (currentI >= mPlayListLen) break;
-                destList[destI++] = mPlayList[currentI++];
-            }
-            for (int i = 0; i < newCount; i++) {
-                if (newI >= newList.length) break;
-                destList[destI++] = newList[newI++];
-            }
+    public void deleteQueueSnapshot(final String name) {
+        synchronized (mQueueSnapshotNames) {
+            loadQueueSnapshotNames();
+            mQueueSnapshotNames.remove(name);
         }
-
-        mPlayList = destList;
-        mPlayListLen = mPlayList.length;
-        updatePlaylist();
+        mStoreExecutor.execute(() -> mQueueSnapshots.delete(name));
     }
 
-    @Override
-    public synchronized void load(long[] list, int position) {
+    /**
+     * Listing the directory is cheap, so this is done by the caller rather than waiting for
+     * any pending write on the store thread. Call with mQueueSnapshotNames held.
+     */
+    private void loadQueueSnapshotNames() {
+        if (!mQueueSnapshotNamesLoaded) {
+            mQueueSnapshotNames.addAll(mQueueSnapshots.list());
+            mQueueSnapshotNamesLoaded = true;
+        }
+    }
+
+    /**
+     * @return the saved queue, or null if there is no saved queue
+     */
+    private QueueStore.Snapshot loadSavedQueue() {
+        QueueStore.Snapshot snapshot;
+        try {
+            snapshot = mQueueStore.load();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load play queue", e);
+            return null;
+        }
+        if (snapshot == null) {
+            snapshot = migrateLegacyQueue();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Converts a queue saved in SharedPreferences by an older version
+     * (as a list of "reverse hexadecimal" numbers) to the binary queue file.
+     */
+    private QueueStore.Snapshot migrateLegacyQueue() {
+        if (!mPersistentState.contains(SettingsActivity.PLAYQUEUE)) {
+            return null;
+        }
+
+        String q = mPersistentState.getString(SettingsActivity.PLAYQUEUE, "");
+        int cardId = mPersistentState.getInt(SettingsActivity.CARDID, mCardId);
+        mPersistentState.edit()
+                .remove(SettingsActivity.PLAYQUEUE)
+                .remove(SettingsActivity.CARDID)
+                .apply();
+
+        PlayQueue queue = new PlayQueue();
+        long n = 0;
+        int shift = 0;
+        for (int i = 0; i < q.length(); i++) {
+            char c = q.charAt(i);
+            if (c == ';') {
+                queue.append(n);
+                n = 0;
+                shift = 0;
+            } else {
+                if (c >= '0' && c <= '9') {
+                    n += ((long) (c - '0') << shift);
+                } else if (c >= 'a' && c <= 'f') {
+                    n += ((long) (10 + c - 'a') << shift);
+                } else {
+                    // bogus playlist data
+                    return null;
+                }
+                shift += 4;
+            }
+        }
+
+        QueueStore.Snapshot snapshot = new QueueStore.Snapshot(queue.toArray(), cardId, 0);
+        try {
+            mQueueStore.save(snapshot.ids, snapshot.cardId, snapshot.generation);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save play queue", e);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Restores the saved queue and play position in memory. Checking that the queue belongs to the current card
+     * and preparing the current track, which needs the media provider, is done in the background by
+     * {@link #verifyRestoredQueue}.
+     */
+    private synchronized void reloadQueue() {
+        mQueueHistory.clear();
+        final int savedCardId;
+        QueueStore.Snapshot snapshot = loadSavedQueue();
+        int edits = -1;
+        if (snapshot != null) {
+            savedCardId = snapshot.cardId;
+            mPlayList.setAll(snapshot.ids);
+            mCardId = snapshot.cardId;
+            mQueueGeneration = snapshot.generation;
+            try {
+                // Apply the edits done after the snapshot was written, possibly up to a crash
+                edits = mQueueJournal.replay(mPlayList, mQueueGeneration);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to replay play queue journal", e);
+            }
+            mJournalSize = mQueueJournal.size();
+        } else {
+            savedCardId = mCardId;
+        }
+        mRestoreRequest = 0;
+        if (mPlayList.size() > 0) {
+            int pos = mPersistentState.getInt(SettingsActivity.CURPOS, 0);
+            if (pos < 0 || pos >= mPlayList.size()) {
+                // The saved playlist is bogus, discard it
+                mPlayList.clear();
+            } else {
+                mPlayPos = pos;
+                mRestoreRequest = newOpenRequest();
+                mRestoreSeek = mPersistentState.getLong(SettingsActivity.SEEKPOS, 0);
+
+                int repmode = mPersistentState.getInt(SettingsActivity.REPEATMODE, REPEAT_NONE);
+                if (repmode != REPEAT_ALL && repmode != REPEAT_CURRENT) {
+                    repmode = REPEAT_NONE;
+                }
+                mRepeatMode = repmode;
+            }
+        }
+        ensureTimeline();
+        publishState();
+
+        final int reload = ++mReloadCount;
+        final boolean compact = edits != 0;
+        mResolveExecutor.execute(() -> verifyRestoredQueue(reload, savedCardId, compact));
+    }
+
+    /**
+     * Runs in the background, and then prepares the restored track.
+     */
+    private void verifyRestoredQueue(int reload, int savedCardId, boolean compact) {
+        int cardId = fetchCardId();
+        synchronized (this) {
+            if (reload != mReloadCount) {
+                return;
+            }
+            mCardId = cardId;
+            if (savedCardId != cardId && mPlayList.size() > 0) {
+                // Only restore the saved playlist if the card is still
+                // the same one as when the playlist was saved
+                clearQueue();
+            } else if (compact || savedCardId != cardId) {
+                // Start over with a fresh snapshot and an empty journal
+                compactQueue();
+            }
+        }
+        openRestoredTrack(reload);
+    }
+
+    /**
+     * Runs in the background. When a card has just been inserted, the media provider might not know about
+     * the track yet. Then it is tried again when the media scanner is done, by {@link #retryRestoredTrack}.
+     */
+    private void openRestoredTrack(int reload) {
+        long audioId;
+        synchronized (this) {
+            if (reload != mReloadCount) {
+                return;
+            }
+            if (mRestoreRequest != mOpenRequest) {
+                // the user has already moved on
+                mRestoreRequest = 0;
+                return;
+            }
+            audioId = currentTrack();
+        }
+        if (audioId < 0) {
+            return;
+        }
+
+        Cursor crsr = MusicUtils.query(this, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                new String[]{"_id"}, "_id=" + audioId, null, null);
+        boolean found = crsr != null && crsr.getCount() > 0;
+        if (crsr != null) {
+            crsr.close();
+        }
+        if (!found) {
+            Log.i(TAG, "Track " + audioId + " not found, waiting for the media scanner");
+            return;
+        }
+
+        mPlaybackHander.post(() -> {
+            int request;
+            boolean play;
+            long seek;
+            synchronized (this) {
+                request = mRestoreRequest;
+                play = mPlayWhenRestored;
+                seek = mRestoreSeek;
+                mRestoreRequest = 0;
+                mPlayWhenRestored = false;
+            }
+            if (request == 0) {
+                return;
+            }
+            if (!openCurrentTrack(request, play, seek)) {
+                synchronized (this) {
+                    if (request == mOpenRequest) {
+                        // The saved playlist is not playable, discard it
+                        clearQueue();
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized void retryRestoredTrack() {
+        if (mRestoreRequest != 0) {
+            final int reload = mReloadCount;
+            mResolveExecutor.execute(() -> openRestoredTrack(reload));
+        }
+    }
+
+    /**
+     * Discards a restored queue which turned out to be unusable.
+     */
+    private synchronized void clearQueue() {
+        mPlayList.clear();
+        mPlayPos = -1;
+        mRestoreRequest = 0;
+        mQueueHistory.clear();
+        newOpenRequest();
+        compactQueue();
+        notifyChange(QUEUE_CHANGED);
+        notifyChange(META_CHANGED);
+    }
+
+    /**
+     * Called when we receive a ACTION_MEDIA_EJECT notification.
+     */
+    private void closeExternalStorageFiles() {
+        // stop playback and clean up if the SD card is going to be unmounted.
+        onPlaybackThread(() -> {
+            stop();
+            if (mSession != null) {
+                deactivateMediaSession();
+            }
+            gotoIdleState();
+            notifyChange(QUEUE_CHANGED);
+            notifyChange(META_CHANGED);
+        });
+    }
+
+    /**
+     * Notify the change-receivers that something has changed.
+     * Listeners in this process get the events from {@link PlaybackEvents},
+     * and other apps get a sticky broadcast.
+     * The intent that is sent contains the following data
+     * for the currently playing track:
+     * "id" - Long: the database row ID
+     * "artist" - String: the name of the artist
+     * "album" - String: the name of the album
+     * "genre" - String: the name of the genre
+     * "track" - String: the name of the track
+     * "playing" - Boolean: is playing now
+     * The intent has an action that is one of
+     * "nu.staldal.djdplayer.metachanged"
+     * "nu.staldal.djdplayer.queuechanged",
+     * "nu.staldal.djdplayer.playstatechanged"
+     * respectively indicating that a new track has
+     * started playing, that the playback queue has
+     * changed, that playback has stopped because
+     * the last file in the list has been played,
+     * or that the play-state changed (paused/resumed).
+     *
+     * Bursts of changes are coalesced into one notification of each kind and one
+     * persistence write, sent at most NOTIFY_MAX_LATENCY_MILLIS after the first change.
+     * Broadcasts are further throttled to BROADCAST_MIN_INTERVAL_MILLIS.
+     */
+    private synchronized void notifyChange(String what) {
+        publishState();
+
+        if (what.equals(QUEUE_CHANGED)) {
+            mQueueChangePending = true;
+            revalidateNext();
+        } else if (what.equals(META_CHANGED)) {
+            mMetaChangePending = true;
+        } else {
+            mPlayStateChangePending = true;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        if (mFirstPendingChange < 0) {
+            mFirstPendingChange = now;
+        }
+        mNotifyHandler.removeMessages(FLUSH_CHANGES);
+        mNotifyHandler.sendEmptyMessageAtTime(FLUSH_CHANGES,
+                Math.min(now + NOTIFY_COALESCE_MILLIS, mFirstPendingChange + NOTIFY_MAX_LATENCY_MILLIS));
+    }
+
+    private final Handler mMainHandler = new Handler();
+
+    private final Handler mNotifyHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case FLUSH_CHANGES:
+                    flushChanges();
+                    break;
+
+                case SEND_BROADCASTS:
+                    sendBroadcasts(false);
+                    break;
+            }
+        }
+    };
+
+    private synchronized void flushChanges() {
+        mNotifyHandler.removeMessages(FLUSH_CHANGES);
+        if (mFirstPendingChange < 0) {
+            return;
+        }
+        mFirstPendingChange = -1;
+
+        int events = 0;
+        if (mQueueChangePending) {
+            mQueueChangePending = false;
+            events |= PlaybackEvents.QUEUE;
+        }
+        if (mMetaChangePending) {
+            mMetaChangePending = false;
+            events |= PlaybackEvents.META;
+        }
+        if (mPlayStateChangePending) {
+            mPlayStateChangePending = false;
+            events |= PlaybackEvents.PLAY_STATE;
+        }
+
+        PlaybackEvents.dispatch(events, mState);
+        if ((events & PlaybackEvents.QUEUE) != 0) extraNotifyChange(QUEUE_CHANGED);
+        if ((events & PlaybackEvents.META) != 0) extraNotifyChange(META_CHANGED);
+        if ((events & PlaybackEvents.PLAY_STATE) != 0) extraNotifyChange(PLAYSTATE_CHANGED);
+
+        mBroadcastsPending |= events;
+        sendBroadcasts(false);
+
+        // Queue edits are journalled as they are made
+        saveQueue(false);
+    }
+
+    private synchronized void sendBroadcasts(boolean now) {
+        if (mBroadcastsPending == 0) {
+            return;
+        }
+        long time = SystemClock.uptimeMillis();
+        if (!now && time < mLastBroadcast + BROADCAST_MIN_INTERVAL_MILLIS) {
+            if (!mNotifyHandler.hasMessages(SEND_BROADCASTS)) {
+                mNotifyHandler.sendEmptyMessageAtTime(SEND_BROADCASTS, mLastBroadcast + BROADCAST_MIN_INTERVAL_MILLIS);
+            }
+            return;
+        }
+        mNotifyHandler.removeMessages(SEND_BROADCASTS);
+        mLastBroadcast = time;
+
+        if ((mBroadcastsPending & PlaybackEvents.QUEUE) != 0) sendChange(QUEUE_CHANGED);
+        if ((mBroadcastsPending & PlaybackEvents.META) != 0) sendChange(META_CHANGED);
+        if ((mBroadcastsPending & PlaybackEvents.PLAY_STATE) != 0) sendChange(PLAYSTATE_CHANGED);
+        mBroadcastsPending = 0;
+    }
+
+    private void sendChange(String what) {
+        PlaybackSnapshot state = mState;
+        Intent i = new Intent(what);
+        i.putExtra("id", state.audioId);
+        i.putExtra("artist", state.artistName);
+        i.putExtra("album", state.albumName);
+        i.putExtra("genre", state.genreName);
+        i.putExtra("track", state.trackName);
+        i.putExtra("playing", state.playing);
+        sendStickyBroadcast(i);
+    }
+
+    @SuppressWarnings("unused")
+    protected void extraNotifyChange(String what) { }
+
+    // insert the list of songs at the specified position in the playlist
+    private void addToPlayList(long[] list, int position) {
+        addToPlaylistInternal(list, position);
+        updatePlaylist();
+    }
+
+    private void addToPlaylistInternal(long[] list, int position) {
+        if (position < 0) { // overwrite
+            long[] old = mPlayList.toArray();
+            mPlayList.setAll(list);
+            compactQueue();
+            rememberQueueEdit(QueueJournal.replaceRecord(list), QueueJournal.replaceRecord(old), mPlayPos);
+        } else {
+            int modCount = mPlayList.getModCount();
+            position = mPlayList.insert(position, list);
+            mQueueChanges.inserted(mPlayList, modCount, position, list);
+            if (timelineFollows(modCount)) {
+                mTimeline.insert(position, durationsOf(list));
+            }
+            ByteBuffer record = QueueJournal.insertRecord(position, list);
+            rememberQueueEdit(record, QueueJournal.removeRecord(position, position + list.length - 1), mPlayPos);
+            journalQueueEdit(record);
+        }
+    }
+
+    private void updatePlaylist() {
+        if (mPlayList.size() == 0) {
+            resetMetadata();
+            notifyChange(META_CHANGED);
+        }
+        notifyChange(QUEUE_CHANGED);
+    }
+
+    @Override
+    public synchronized void enqueue(long[] list, int action) {
+        if (list.length == 0) return;
+
+        if ((action == NEXT || action == NOW) && mPlayPos + 1 < mPlayList.size()) {
+            addToPlayList(list, mPlayPos + 1);
+            if (action == NOW) {
+                mPlayPos++;
+                openCurrentTrack(true, 0);
+                return;
+            }
+        } else {
+            addToPlayList(list, Integer.MAX_VALUE);
+            if (action == NOW) {
+                mPlayPos = mPlayList.size() - list.length;
+                openCurrentTrack(true, 0);
+                return;
+            }
+        }
+        if (mPlayPos < 0) {
+            mPlayPos = 0;
+            openCurrentTrack(true, 0);
+        }
+    }
+
+    /**
+     * Stops playback and opens the track at the play position, optionally seeking in it and starting to play it.
+     * Done right away when on the playback thread and not holding the monitor, otherwise on the playback thread
+     * later, since preparing the track and fetching its metadata block on I/O.
+     */
+    private void openCurrentTrack(final boolean play, final long seekPosition) {
+        final int request = newOpenRequest();
+        if (isOnPlaybackThread() && !Thread.holdsLock(this)) {
+            openCurrentTrackOrToast(request, play, seekPosition);
+        } else {
+            mPlaybackHander.post(() -> openCurrentTrackOrToast(request, play, seekPosition));
+        }
+    }
+
+    private synchronized int newOpenRequest() {
+        return ++mOpenRequest;
+    }
+
+    private void openCurrentTrackOrToast(int request, boolean play, long seekPosition) {
+        if (!openCurrentTrack(request, play, seekPosition)) {
+            Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Runs on the playback thread, without holding the monitor.
+     *
+     * @return false if the track could not be prepared, true if it could or if a later request supersedes this one
+     */
+    private boolean openCurrentTrack(int request, boolean play, long seekPosition) {
+        long audioId;
+        synchronized (this) {
+            if (request != mOpenRequest) {
+                return true;
+            }
+            audioId = currentTrack();
+        }
+        if (audioId < 0) {
+            stop();
+        } else {
+            pausePlayers();
+        }
+        if (audioId < 0 || !openTrack(audioId)) {
+            updatePosition();
+            notifyChange(META_CHANGED);
+            return false;
+        }
+        fetchMetadata(audioId);
+        if (seekPosition > 0) {
+            seek(seekPosition < duration() ? seekPosition : 0);
+        }
+        if (play) {
+            play();
+        }
+        updatePosition();
+        scheduleFillPool();
+        notifyChange(META_CHANGED);
+        return true;
+    }
+
+    /**
+     * Makes a player with the track the current one, reusing one which has it prepared already if any,
+     * otherwise preparing it on the player with the least useful track.
+     * Runs on the playback thread, without holding the monitor.
+     */
+    private boolean openTrack(long audioId) {
+        int prepared = mPool.find(audioId, mCurrentPlayer, -1, false);
+        if (prepared >= 0) {
+            Log.d(TAG, "Song " + audioId + " already prepared on player " + prepared);
+            setCurrentPlayer(prepared);
+            mPlayers[prepared].seek(0);
+            return true;
+        }
+        int victim = mPool.victim(wantedTracks(), 0);
+        if (victim >= 0) {
+            setCurrentPlayer(victim);
+        }
+        return prepare(audioId);
+    }
+
+    /**
+     * @return the track at the play position, or -1 if none
+     */
+    private synchronized long currentTrack() {
+        return mPlayPos >= 0 && mPlayPos < mPlayList.size() ? mPlayList.get(mPlayPos) : -1;
+    }
+
+    @Override
+    public void interleave(long[] newList, int currentCount, int newCount) {
+        interleave(new long[][]{newList}, new int[]{currentCount, newCount});
+    }
+
+    @Override
+    public synchronized void interleave(long[][] sources, int[] weights) {
+        int start = Math.max(mPlayPos + 1, 0);
+        mPlayList.interleave(start, sources, weights);
+        int[] lengths = new int[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            lengths[i] = sources[i].length;
+        }
+        ByteBuffer record = QueueJournal.interleaveFromRecord(start, sources, weights);
+        rememberQueueEdit(record, QueueJournal.uninterleaveRecord(start, lengths, weights), mPlayPos);
+        journalQueueEdit(record);
+        updatePlaylist();
+    }
+
+    /**
+     * Progress of adding the tracks of a URI to the playlist, only used on the main thread.
+     */
+    private static class UriEnqueue {
+        final int action;
+        final int cardId;
+        int count = 0;   // number of tracks added so far
+        int next;        // position after the last added track
+        long lastId;     // the last added track, to detect if the playlist has been edited meanwhile
+
+        UriEnqueue(int action, int cardId) {
+            this.action = action;
+            this.cardId = cardId;
+        }
+    }
+
+    @Override
+    public void enqueue(final Uri members, int action, final boolean shuffle) {
+        mResolveExecutor.execute(() -> {
+            // Taken here, after any pending check of the card id
+            final UriEnqueue request = new UriEnqueue(action, mCardId);
+            Cursor cursor = MusicUtils.query(this, members, null, null, null, null);
+            if (cursor == null) {
+                mMainHandler.post(() -> enqueueChunk(request, MusicUtils.sEmptyList, true));
+                return;
+            }
+            try {
+                if (shuffle) {
+                    final long[] list = MusicUtils.getSongListForCursor(cursor);
+                    MusicUtils.shuffleArray(list);
+                    mMainHandler.post(() -> enqueueChunk(request, list, true));
+                } else {
+                    int column = MusicUtils.getSongIdColumn(cursor);
+                    long[] chunk = new long[FIRST_ENQUEUE_CHUNK];
+                    int length = 0;
+                    while (cursor.moveToNext()) {
+                        chunk[length++] = cursor.getLong(column);
+                        if (length == chunk.length) {
+                            final long[] full = chunk;
+                            mMainHandler.post(() -> enqueueChunk(request, full, false));
+                            chunk = new long[ENQUEUE_CHUNK];
+                            length = 0;
+                        }
+                    }
+                    final long[] rest = Arrays.copyOf(chunk, length);
+                    mMainHandler.post(() -> enqueueChunk(request, rest, true));
+                }
+            } finally {
+                cursor.close();
+            }
+        });
+    }
+
+    private synchronized void enqueueChunk(UriEnqueue request, long[] chunk, boolean last) {
+        if (request.cardId != mCardId) {
+            // the tracks are from another card
+            return;
+        }
+        if (chunk.length > 0) {
+            if (request.count == 0) {
+                if (request.action == REPLACE) {
+                    load(chunk, 0);
+                    request.next = chunk.length;
+                } else {
+                    int position = request.action != LAST && mPlayPos + 1 < mPlayList.size()
+                            ? mPlayPos + 1
+                            : mPlayList.size();
+                    enqueue(chunk, request.action);
+                    request.next = position + chunk.length;
+                }
+            } else if (request.action == LAST || request.next > mPlayList.size()
+                    || mPlayList.get(request.next - 1) != request.lastId) {
+                // the previous chunk has been moved or removed, continue at the end instead
+                addToPlayList(chunk, Integer.MAX_VALUE);
+                request.next = mPlayList.size();
+            } else {
+                addToPlayList(chunk, request.next);
+                if (mPlayPos >= request.next) {
+                    mPlayPos += chunk.length;
+                }
+                request.next += chunk.length;
+            }
+            request.count += chunk.length;
+            request.lastId = chunk[chunk.length - 1];
+        }
+        if (last) {
+            if (request.count == 0 && request.action == REPLACE) {
+                Toast.makeText(this, R.string.emptyplaylist, Toast.LENGTH_SHORT).show();
+            } else if (request.action == LAST) {
+                Toast.makeText(this, getResources().getQuantityString(
+                        R.plurals.NNNtrackstoplayqueue, request.count, request.count), Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+
+    @Override
+    public void interleave(Uri members, boolean shuffle, int currentCount, int newCount) {
+        interleave(new Uri[]{members}, shuffle, new int[]{currentCount, newCount});
+    }
+
+    @Override
+    public void interleave(final Uri[] members, final boolean shuffle, final int[] weights) {
+        mResolveExecutor.execute(() -> {
+            final int cardId = mCardId;
+            final long[][] sources = new long[members.length][];
+            int total = 0;
+            for (int i = 0; i < members.length; i++) {
+                sources[i] = MusicUtils.getSongListForCursorAndClose(
+                        MusicUtils.query(this, members[i], null, null, null, null));
+                if (shuffle) {
+                    MusicUtils.shuffleArray(sources[i]);
+                }
+                total += sources[i].length;
+            }
+            final int count = total;
+            mMainHandler.post(() -> {
+                if (cardId != mCardId) {
+                    return;
+                }
+                interleave(sources, weights);
+                Toast.makeText(this, getResources().getQuantityString(
+                        R.plurals.NNNtrackstoplayqueue, count, count), Toast.LENGTH_SHORT).show();
+            });
+        });
+    }
+
+    @Override
+    public synchronized void load(long[] list, int position) {
         int listlength = list.length;
         boolean newlist = true;
-        if (mPlayListLen == listlength) {
+        if (mPlayList.size() == listlength) {
             // possible fast path: list might be the same
             newlist = false;
             for (int i = 0; i < listlength; i++) {
-                if (list[i] != mPlayList[i]) {
+                if (list[i] != mPlayList.get(i)) {
                     newlist = true;
                     break;
                 }
@@ -1002,91 +1762,234 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
             mPlayPos = 0;
         }
 
-        stop();
-        prepareAndPlay(mPlayList[mPlayPos]);
+        openCurrentTrack(true, 0);
     }
 
     @Override
     public synchronized void moveQueueItem(int index1, int index2) {
-        if (index1 >= mPlayListLen) {
-            index1 = mPlayListLen - 1;
+        if (index1 >= mPlayList.size()) {
+            index1 = mPlayList.size() - 1;
         }
-        if (index2 >= mPlayListLen) {
-            index2 = mPlayListLen - 1;
+        if (index2 >= mPlayList.size()) {
+            index2 = mPlayList.size() - 1;
         }
+        int playPos = mPlayPos;
+        int modCount = mPlayList.getModCount();
         if (index1 < index2) {
-            long tmp = mPlayList[index1];
-            System.arraycopy(mPlayList, index1 + 1, mPlayList, index1, index2 - index1);
-            mPlayList[index2] = tmp;
+            mPlayList.move(index1, index2);
             if (mPlayPos == index1) {
                 mPlayPos = index2;
             } else if (mPlayPos >= index1 && mPlayPos <= index2) {
                 mPlayPos--;
             }
         } else if (index2 < index1) {
-            long tmp = mPlayList[index1];
-            System.arraycopy(mPlayList, index2, mPlayList, index2 + 1, index1 - index2);
-            mPlayList[index2] = tmp;
+            mPlayList.move(index1, index2);
             if (mPlayPos == index1) {
                 mPlayPos = index2;
             } else if (mPlayPos >= index2 && mPlayPos <= index1) {
                 mPlayPos++;
             }
         }
+        if (timelineFollows(modCount)) {
+            mTimeline.move(index1, index2);
+        }
+        if (index1 != index2) {
+            mQueueChanges.moved(mPlayList, modCount, index1, index1, index2);
+            ByteBuffer record = QueueJournal.moveRecord(index1, index2);
+            rememberQueueEdit(record, QueueJournal.moveRecord(index2, index1), playPos);
+            journalQueueEdit(record);
+        }
+        notifyChange(QUEUE_CHANGED);
+    }
+
+    @Override
+    public synchronized void moveQueueBlock(int first, int last, int to) {
+        int size = mPlayList.size();
+        if (first < 0) first = 0;
+        if (last >= size) last = size - 1;
+        if (last < first) return;
+        int length = last - first + 1;
+        if (to > size - length) to = size - length;
+        if (to < 0) to = 0;
+        if (to == first) return;
+
+        int playPos = mPlayPos;
+        int modCount = mPlayList.getModCount();
+        mPlayList.moveBlock(first, last, to);
+        mQueueChanges.moved(mPlayList, modCount, first, last, to);
+        if (timelineFollows(modCount)) {
+            mTimeline.moveBlock(first, last, to);
+        }
+        mPlayPos = PlayQueue.positionAfterMove(mPlayPos, first, last, to);
+        ByteBuffer record = QueueJournal.moveBlockRecord(first, last, to);
+        rememberQueueEdit(record, QueueJournal.moveBlockRecord(to, to + length - 1, first), playPos);
+        journalQueueEdit(record);
+        notifyChange(QUEUE_CHANGED);
+    }
+
+    @Override
+    public synchronized void moveQueueItems(int[] from, int[] to) {
+        int size = mPlayList.size();
+        if (from.length != to.length) {
+            throw new IllegalArgumentException("from and to must have the same length");
+        }
+        for (int i = 0; i < from.length; i++) {
+            if (from[i] < 0 || from[i] >= size || to[i] < 0 || to[i] >= size) {
+                throw new IndexOutOfBoundsException("Move " + from[i] + " to " + to[i] + " in queue of " + size);
+            }
+        }
+        if (from.length == 0) return;
+
+        int playPos = mPlayPos;
+        int modCount = mPlayList.getModCount();
+        for (int i = 0; i < from.length; i++) {
+            if (from[i] == to[i]) continue;
+            int moveModCount = mPlayList.getModCount();
+            mPlayList.move(from[i], to[i]);
+            mQueueChanges.moved(mPlayList, moveModCount, from[i], from[i], to[i]);
+            mPlayPos = PlayQueue.positionAfterMove(mPlayPos, from[i], from[i], to[i]);
+        }
+        if (timelineFollows(modCount)) {
+            for (int i = 0; i < from.length; i++) {
+                mTimeline.move(from[i], to[i]);
+            }
+        }
+        int[] undoFrom = new int[to.length];
+        int[] undoTo = new int[from.length];
+        for (int i = 0; i < from.length; i++) {
+            undoFrom[i] = to[from.length - 1 - i];
+            undoTo[i] = from[from.length - 1 - i];
+        }
+        ByteBuffer record = QueueJournal.movesRecord(from, to);
+        rememberQueueEdit(record, QueueJournal.movesRecord(undoFrom, undoTo), playPos);
+        journalQueueEdit(record);
         notifyChange(QUEUE_CHANGED);
     }
 
     @Override
     public synchronized long[] getQueue() {
-        int len = mPlayListLen;
-        long[] list = new long[len];
-        System.arraycopy(mPlayList, 0, list, 0, len);
-        return list;
+        return mPlayList.toArray();
+    }
+
+    @Override
+    public synchronized QueueChangeLog.Diff getQueueChanges(long sinceVersion) {
+        return mQueueChanges.diff(sinceVersion, mPlayList);
     }
 
     @Override
-    public synchronized int getQueueLength() {
-        return mPlayListLen;
+    public int getQueueLength() {
+        return mState.queueLength;
+    }
+
+    @Override
+    public synchronized int[] getQueuePositions(long audioId) {
+        return mPlayList.positionsOf(audioId);
     }
 
     private boolean prepare(long audioId) {
-        Log.d(TAG, "Preparing song " + audioId);
-        return mPlayers[mCurrentPlayer].prepare(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/" + String.valueOf(audioId));
+        return preparePlayer(mCurrentPlayer, audioId);
+    }
+
+    /**
+     * Runs on the playback thread, without holding the monitor.
+     */
+    private boolean preparePlayer(int player, long audioId) {
+        Log.d(TAG, "Preparing song " + audioId + " on player " + player);
+        if (player == mNextPlayer) {
+            mPlayers[mCurrentPlayer].setNext(null);
+        }
+        boolean prepared = mPlayers[player].prepare(trackUri(audioId));
+        mPool.set(player, prepared ? audioId : -1);
+        if (prepared) {
+            mPool.setReady(player);
+        }
+        return prepared;
+    }
+
+    /**
+     * Runs on the playback thread.
+     */
+    private void preparePlayerAsync(int player, long audioId) {
+        Log.d(TAG, "Preparing song " + audioId + " on player " + player + " ahead");
+        if (player == mNextPlayer) {
+            mPlayers[mCurrentPlayer].setNext(null);
+        }
+        mPool.set(player, audioId);
+        if (!mPlayers[player].prepareAsync(trackUri(audioId))) {
+            mPool.set(player, -1);
+        }
+    }
+
+    /**
+     * Runs on the playback thread.
+     */
+    private void resetPlayer(int player) {
+        if (player == mNextPlayer) {
+            mPlayers[mCurrentPlayer].setNext(null);
+        }
+        mPlayers[player].stop();
+        mPool.set(player, -1);
+    }
+
+    private static String trackUri(long audioId) {
+        return MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/" + String.valueOf(audioId);
     }
 
+    /**
+     * Runs on the playback thread, without holding the monitor.
+     */
     private void fetchMetadata(long audioId) {
-        resetMetadata();
+        String artistName = null;
+        long artistId = -1;
+        String albumName = null;
+        long albumId = -1;
+        String mimeType = null;
+        File folder = null;
+        String trackName = null;
+        IdAndName genre = null;
+        boolean found = false;
         Cursor cursor = getContentResolver().query(
                 MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
                 CURSOR_COLS, "_id=" + String.valueOf(audioId), null, null);
         if (cursor != null) {
             try {
                 if (cursor.moveToFirst()) {
-                    mArtistName = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.ARTIST));
-                    mArtistId = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.ARTIST_ID));
-                    mAlbumName = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.ALBUM));
-                    mAlbumId = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.ALBUM_ID));
-                    mMimeType = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.MIME_TYPE));
-                    mFolder = new File(cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.DATA))).getParentFile();
-                    mTrackName = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.TITLE));
-
-                    IdAndName idAndName = MusicUtils.fetchGenre(this, audioId);
-                    if (idAndName != null) {
-                        mGenreId = idAndName.id;
-                        mGenreName = idAndName.name;
-                    }
-
-                    if (mSession != null) {
-                        updateMediaMetadata();
-                    }
+                    found = true;
+                    artistName = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.ARTIST));
+                    artistId = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.ARTIST_ID));
+                    albumName = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.ALBUM));
+                    albumId = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.ALBUM_ID));
+                    mimeType = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.MIME_TYPE));
+                    folder = new File(cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.DATA))).getParentFile();
+                    trackName = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns.TITLE));
+
+                    genre = MusicUtils.fetchGenre(this, audioId);
                 }
             } finally {
                 cursor.close();
             }
         }
+        synchronized (this) {
+            resetMetadata();
+            mArtistName = artistName;
+            mArtistId = artistId;
+            mAlbumName = albumName;
+            mAlbumId = albumId;
+            mMimeType = mimeType;
+            mFolder = folder;
+            mTrackName = trackName;
+            if (genre != null) {
+                mGenreId = genre.id;
+                mGenreName = genre.name;
+            }
+            publishState();
+        }
+        if (found && mSession != null) {
+            updateMediaMetadata();
+        }
     }
 
-    private void resetMetadata() {
+    private synchronized void resetMetadata() {
         mGenreName = null;
         mGenreId = -1;
         mArtistName = null;
@@ -1096,6 +1999,54 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
         mMimeType = null;
         mFolder = null;
         mTrackName = null;
+        publishState();
+    }
+
+    private int crossfadeQueuePosition() {
+        boolean crossfading = isOnPlaybackThread() ? mPlayers[mNextPlayer].isPlaying() : mCrossfading;
+        if (mPlayPos >= 0 && mPlayPos + 1 < mPlayList.size() && crossfading) {
+            return mPlayPos + 1;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Publishes a new snapshot of the playback state, to be read without locking.
+     * The state of the players is read on the playback thread only, other threads use what it read last.
+     */
+    private synchronized void publishState() {
+        if (isOnPlaybackThread()) {
+            mCurrentReady = mPlayers[mCurrentPlayer].isInitialized();
+            mAudioSessionId = mPlayers[mCurrentPlayer].getAudioSessionId();
+            mCrossfading = mPlayers[mNextPlayer].isPlaying();
+            mPreparedNextId = mPool.isReady(mNextPlayer) ? mPool.get(mNextPlayer) : -1;
+        }
+        int crossfadePos = crossfadeQueuePosition();
+        long preparedNextId = mPreparedNextId;
+        mState = new PlaybackSnapshot(
+                ++mStateVersion,
+                mPlayPos >= 0 && mPlayPos < mPlayList.size() && mCurrentReady ? mPlayList.get(mPlayPos) : -1,
+                crossfadePos >= 0 ? mPlayList.get(crossfadePos) : -1,
+                crossfadePos < 0 && preparedNextId >= 0 && preparedNextId == nextTrack() ? preparedNextId : -1,
+                mPlayPos,
+                crossfadePos,
+                mPlayList.size(),
+                mRepeatMode,
+                mIsSupposedToBePlaying,
+                mDuration,
+                mPosition,
+                mPositionTime,
+                mPositionSpeed,
+                mArtistName,
+                mArtistId,
+                mAlbumName,
+                mAlbumId,
+                mGenreName,
+                mGenreId,
+                mMimeType,
+                mFolder,
+                mTrackName);
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
@@ -1114,7 +2065,11 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
     }
 
     @Override
-    public synchronized void play() {
+    public void play() {
+        onPlaybackThread(this::playInternal);
+    }
+
+    private void playInternal() {
         int result = mAudioManager.requestAudioFocus(mAudioFocusListener, AudioManager.STREAM_MUSIC,
                 AudioManager.AUDIOFOCUS_GAIN);
         if (result != AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
@@ -1124,6 +2079,13 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
 
         beforePlay();
 
+        synchronized (this) {
+            if (mRestoreRequest != 0) {
+                // the restored track is not prepared yet
+                mPlayWhenRestored = true;
+            }
+        }
+
         if (mPlayers[mCurrentPlayer].isInitialized()) {
             // if we are at the end of the song, go to the next song first
             long duration = mPlayers[mCurrentPlayer].duration();
@@ -1134,15 +2096,13 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
 
             if (mSession != null) {
                 activateMediaSession();
-                updateMediaSession(true);
             }
 
             mPlayers[mCurrentPlayer].start();
             // make sure we fade in, in case a previous fadein was stopped because of another focus loss
-            mPlaybackHander.removeMessages(DUCK);
             mPlaybackHander.removeMessages(FADEDOWN);
             mPlaybackHander.removeMessages(CROSSFADE);
-            mPlaybackHander.sendMessage(mPlaybackHander.obtainMessage(FADEUP, mCurrentPlayer, 0));
+            fadeIn(mCurrentPlayer);
 
             startForeground(PLAYBACKSERVICE_STATUS, buildNotification());
 
@@ -1150,6 +2110,7 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
                 mIsSupposedToBePlaying = true;
                 notifyChange(PLAYSTATE_CHANGED);
             }
+            updatePosition();
         }
     }
 
@@ -1207,21 +2168,41 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
         return PendingIntent.getService(this, 0, new Intent(action).setClass(this, getClass()), 0);
     }
 
+    /**
+     * Runs on the playback thread.
+     */
     private void stop() {
-        mPlaybackHander.removeMessages(DUCK);
-        mPlaybackHander.removeMessages(FADEUP);
-        mPlaybackHander.removeMessages(FADEDOWN);
-        mPlaybackHander.removeMessages(CROSSFADE);
+        cancelFades();
+        mPlaybackHander.removeMessages(PREPARE_NEXT);
+        mPlaybackHander.removeMessages(FILL_POOL);
+        mPlayers[mCurrentPlayer].setNext(null);
         for (MyMediaPlayer player : mPlayers) player.stop();
+        mPool.clear();
+        resetMetadata();
+    }
+
+    /**
+     * Like stop(), but the players are only paused, and keep their tracks prepared to be reused.
+     * Runs on the playback thread.
+     */
+    private void pausePlayers() {
+        cancelFades();
+        mPlaybackHander.removeMessages(PREPARE_NEXT);
+        mPlaybackHander.removeMessages(FILL_POOL);
+        mPlayers[mCurrentPlayer].setNext(null);
+        for (MyMediaPlayer player : mPlayers) {
+            if (player.isPlaying()) player.pause();
+        }
         resetMetadata();
     }
 
     @Override
-    public synchronized void pause() {
-        mPlaybackHander.removeMessages(DUCK);
-        mPlaybackHander.removeMessages(FADEUP);
-        mPlaybackHander.removeMessages(FADEDOWN);
-        mPlaybackHander.removeMessages(CROSSFADE);
+    public void pause() {
+        onPlaybackThread(this::pauseInternal);
+    }
+
+    private void pauseInternal() {
+        cancelFades();
 
         boolean wasPlaying = isPlaying();
 
@@ -1244,50 +2225,254 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
 
     @Override
     public void previousOrRestartCurrent() {
-        if (position() < PREV_THRESHOLD_MILLIS) {
-            previous();
-        } else {
-            seek(0);
-        }
+        onPlaybackThread(() -> {
+            if (position() < PREV_THRESHOLD_MILLIS) {
+                previous();
+            } else {
+                seek(0);
+            }
+        });
     }
 
     @Override
-    public synchronized void previous() {
-        if (mPlayListLen <= 0) return;
+    public void previous() {
+        synchronized (this) {
+            if (mPlayList.size() <= 0) return;
 
-        if (mPlayPos > 0) {
-            mPlayPos--;
-        } else {
-            mPlayPos = mPlayListLen - 1;
+            if (mPlayPos > 0) {
+                mPlayPos--;
+            } else {
+                mPlayPos = mPlayList.size() - 1;
+            }
         }
-        stop();
-        prepareAndPlay(mPlayList[mPlayPos]);
+        openCurrentTrack(true, 0);
     }
 
     @Override
-    public synchronized void next() {
-        if (mPlayListLen <= 0) return;
+    public void next() {
+        synchronized (this) {
+            if (mPlayList.size() <= 0) return;
 
-        if (mPlayPos >= mPlayListLen - 1) {
-            // we're at the end of the list
-            mPlayPos = 0;
-        } else {
-            mPlayPos++;
+            if (mPlayPos >= mPlayList.size() - 1) {
+                // we're at the end of the list
+                mPlayPos = 0;
+            } else {
+                mPlayPos++;
+            }
         }
-        stop();
-        prepareAndPlay(mPlayList[mPlayPos]);
+        openCurrentTrack(true, 0);
     }
 
     private void gotoIdleState() {
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mDelayedStopHandler.sendMessageDelayed(mDelayedStopHandler.obtainMessage(), IDLE_DELAY_MILLIS);
         stopForeground(true);
-        if (mSession != null) {
-            if (isMediaSessionActive()) {
-                updateMediaSession(false);
+        mIsSupposedToBePlaying = false;
+        updatePosition();
+    }
+
+    /**
+     * Samples the position of the current track after a discontinuity, such as a seek, pause or
+     * track change, and publishes it to the listeners and the media session.
+     * Runs on the playback thread.
+     */
+    private void updatePosition() {
+        MyMediaPlayer player = mPlayers[mCurrentPlayer];
+        boolean initialized = player.isInitialized();
+        long duration = initialized ? player.duration() : -1;
+        long position = initialized ? player.currentPosition() : -1;
+        synchronized (this) {
+            mDuration = duration;
+            mPosition = position;
+            mPositionTime = SystemClock.elapsedRealtime();
+            mPositionSpeed = initialized && mIsSupposedToBePlaying ? 1.0f : 0f;
+            publishState();
+        }
+        PlaybackEvents.dispatchPosition(mState);
+        if (mSession != null && isMediaSessionActive()) {
+            updateMediaSession();
+        }
+        schedulePrepareNext();
+    }
+
+    /**
+     * Schedules preparing the next track on the next player, the configured time before the transition to it,
+     * so that the transition does not have to wait for the track to be loaded.
+     * Runs on the playback thread.
+     */
+    private void schedulePrepareNext() {
+        mPlaybackHander.removeMessages(PREPARE_NEXT);
+        linkNext(); // the settings may have changed
+        MyMediaPlayer player = mPlayers[mCurrentPlayer];
+        if (!mIsSupposedToBePlaying || !player.isInitialized()) {
+            return;
+        }
+        SettingsSnapshot settings = SettingsSnapshot.get(this);
+        long transitionMillis = player.duration() - player.currentPosition();
+        if (settings.fadeSeconds > 0 && settings.crossFade) {
+            transitionMillis -= settings.fadeSeconds * 1000;
+        }
+        mPlaybackHander.sendEmptyMessageDelayed(PREPARE_NEXT,
+                Math.max(0, transitionMillis - settings.prepareAheadSeconds * 1000));
+    }
+
+    /**
+     * Makes a player with the track which follows the current one the next player, preparing it
+     * on the player with the least useful track unless some player has it already.
+     * Runs on the playback thread.
+     */
+    private void prepareNext() {
+        if (mPlayers[mNextPlayer].isPlaying()) {
+            // cross-fading to it
+            return;
+        }
+        long nextId = nextTrack();
+        if (nextId >= 0) {
+            int prepared = mPool.find(nextId, mNextPlayer, mCurrentPlayer, true);
+            if (prepared >= 0) {
+                useAsNext(prepared);
+            } else {
+                int victim = mPool.victim(wantedTracks(), 1, mCurrentPlayer);
+                useAsNext(victim >= 0 ? victim : mNextPlayer);
+                preparePlayerAsync(mNextPlayer, nextId);
             }
+            publishState();
+        }
+        linkNext();
+    }
+
+    /**
+     * Prepares the tracks around the current one on the players not used for anything more useful,
+     * so that skipping to them starts without delay.
+     * Runs on the playback thread.
+     */
+    private void fillPool() {
+        long[] wanted = wantedTracks();
+        int crossfading = mPlayers[mNextPlayer].isPlaying() ? mNextPlayer : -1;
+        for (int rank = 1; rank < wanted.length; rank++) {
+            long audioId = wanted[rank];
+            if (audioId < 0 || mPool.find(audioId, -1, mCurrentPlayer, true) >= 0) {
+                continue;
+            }
+            int victim = mPool.victim(wanted, rank, mCurrentPlayer, crossfading);
+            if (victim < 0) {
+                break;
+            }
+            preparePlayerAsync(victim, audioId);
+        }
+    }
+
+    /**
+     * Only with more than two players, with two the next track is prepared ahead anyway,
+     * and the previous track is kept as long as the player is not needed.
+     */
+    private void scheduleFillPool() {
+        if (mPlayers.length > 2) {
+            mPlaybackHander.removeMessages(FILL_POOL);
+            mPlaybackHander.sendEmptyMessageDelayed(FILL_POOL, FILL_POOL_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Releases the tracks prepared on the players which are not used for the current or next track.
+     * Runs on the playback thread.
+     */
+    private void releaseUnusedPlayers() {
+        long nextId = nextTrack();
+        for (int i = 0; i < mPlayers.length; i++) {
+            if (i != mCurrentPlayer && !(i == mNextPlayer && (mPlayers[i].isPlaying() || mPool.get(i) == nextId))
+                    && mPool.get(i) >= 0) {
+                Log.d(TAG, "Releasing song " + mPool.get(i) + " on player " + i);
+                resetPlayer(i);
+            }
+        }
+        publishState();
+    }
+
+    /**
+     * @return the tracks to keep prepared, the most useful first: the current, next and previous ones,
+     * and then the ones after the next, as many as there are players
+     */
+    private synchronized long[] wantedTracks() {
+        long[] wanted = new long[mPlayers.length];
+        Arrays.fill(wanted, -1);
+        int size = mPlayList.size();
+        if (mPlayPos < 0 || mPlayPos >= size) {
+            return wanted;
+        }
+        wanted[0] = mPlayList.get(mPlayPos);
+        wanted[1] = mPlayList.get(mPlayPos + 1 < size ? mPlayPos + 1 : 0);
+        if (wanted.length > 2) {
+            wanted[2] = mPlayList.get(mPlayPos > 0 ? mPlayPos - 1 : size - 1);
+        }
+        for (int i = 3; i < wanted.length && mPlayPos + i - 1 < size; i++) {
+            wanted[i] = mPlayList.get(mPlayPos + i - 1);
+        }
+        return wanted;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+            onPlaybackThread(this::releaseUnusedPlayers);
+        }
+    }
+
+    /**
+     * @return the number of players, from the settings, but only two on a low memory device
+     */
+    private int numPlayers() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && isLowRamDevice()) {
+            return 2;
+        }
+        return SettingsSnapshot.get(this).players;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private boolean isLowRamDevice() {
+        return ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE)).isLowRamDevice();
+    }
+
+    /**
+     * In gapless mode, links the next player to the current one if it holds the next track, so that the framework
+     * starts it without gap when the current one completes. Otherwise unlinks it.
+     * Runs on the playback thread.
+     */
+    private void linkNext() {
+        SettingsSnapshot settings = SettingsSnapshot.get(this);
+        MyMediaPlayer current = mPlayers[mCurrentPlayer];
+        MyMediaPlayer next = mPlayers[mNextPlayer];
+        long nextId = mPool.get(mNextPlayer);
+        boolean link = settings.gapless && settings.fadeSeconds == 0
+                && current.isInitialized() && mPool.isReady(mNextPlayer) && !next.isPlaying()
+                && nextId >= 0 && nextId == nextTrack();
+        if (link && !current.hasNext()) {
+            next.seek(0); // it may have been played before
+            setVolume(mNextPlayer, mFader.volume(mCurrentPlayer, SystemClock.uptimeMillis()));
+        }
+        current.setNext(link ? next : null);
+    }
+
+    /**
+     * Prepares the next track again if it has been prepared ahead, since the queue around the play position
+     * or the repeat mode may have changed so that another track is next.
+     */
+    private void revalidateNext() {
+        mPlaybackHander.obtainMessage(PREPARE_NEXT, 1, 0).sendToTarget();
+    }
+
+    /**
+     * @return the track to play when the current one has ended, or -1 if none
+     */
+    private synchronized long nextTrack() {
+        if (mRepeatMode != REPEAT_NONE && mRepeatMode != REPEAT_ALL || mPlayPos < 0 || mPlayList.size() <= 0) {
+            return -1;
+        } else if (mPlayPos + 1 < mPlayList.size()) {
+            return mPlayList.get(mPlayPos + 1);
+        } else {
+            return mRepeatMode == REPEAT_ALL ? mPlayList.get(0) : -1;
         }
-        mIsSupposedToBePlaying = false;
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
@@ -1296,11 +2481,12 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private void updateMediaSession(boolean isPlaying) {
+    private void updateMediaSession() {
+        PlaybackSnapshot state = mState;
         PlaybackState.Builder stateBuilder = new PlaybackState.Builder()
-                .setActions(isPlaying ? PlaybackState.ACTION_PAUSE : PlaybackState.ACTION_PLAY);
-        stateBuilder.setState(isPlaying ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_PAUSED,
-                mPlayers[mCurrentPlayer].currentPosition(), 1.0f);
+                .setActions(state.playing ? PlaybackState.ACTION_PAUSE : PlaybackState.ACTION_PLAY);
+        stateBuilder.setState(state.playing ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_PAUSED,
+                state.position, state.speed, state.positionTime);
         mSession.setPlaybackState(stateBuilder.build());
     }
 
@@ -1309,6 +2495,113 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
         mSession.setActive(false);
     }
 
+    /**
+     * Checks whether the timeline was aligned with the queue before an edit, and if so assumes
+     * that the caller applies the same edit to it. Otherwise it is rebuilt on the next query.
+     */
+    private boolean timelineFollows(int modCountBeforeEdit) {
+        if (mTimelineModCount != modCountBeforeEdit) return false;
+        mTimelineModCount = mPlayList.getModCount();
+        return true;
+    }
+
+    private void ensureTimeline() {
+        if (mTimelineModCount != mPlayList.getModCount()) {
+            mTimeline.setAll(durationsOf(mPlayList.toArray()));
+            mTimelineModCount = mPlayList.getModCount();
+        }
+    }
+
+    /**
+     * @return the known durations of the tracks, 0 for those not yet known, which are fetched
+     * in the background and filled in when they arrive
+     */
+    private int[] durationsOf(long[] list) {
+        int[] durations = new int[list.length];
+        long[] missing = new long[list.length];
+        int missingCount = 0;
+        for (int i = 0; i < list.length; i++) {
+            int duration = mDurations.get(list[i], -1);
+            if (duration < 0) {
+                mDurations.put(list[i], 0);
+                missing[missingCount++] = list[i];
+                duration = 0;
+            }
+            durations[i] = duration;
+        }
+        if (missingCount > 0) {
+            fetchDurations(Arrays.copyOf(missing, missingCount));
+        }
+        return durations;
+    }
+
+    private void fetchDurations(final long[] ids) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            final long[] durations = MusicUtils.fetchDurations(this, ids);
+            mMainHandler.post(() -> {
+                synchronized (MediaPlaybackService.this) {
+                    boolean aligned = mTimelineModCount == mPlayList.getModCount();
+                    boolean changed = false;
+                    for (int i = 0; i < ids.length; i++) {
+                        if (durations[i] <= 0 || !mDurations.containsKey(ids[i])) continue;
+                        mDurations.put(ids[i], (int) durations[i]);
+                        changed = true;
+                        if (aligned) {
+                            for (int position : mPlayList.positionsOf(ids[i])) {
+                                mTimeline.set(position, (int) durations[i]);
+                            }
+                        }
+                    }
+                    if (changed) {
+                        // The times until the tracks start have changed
+                        notifyChange(QUEUE_CHANGED);
+                    }
+                }
+            });
+        });
+    }
+
+    /**
+     * @return how much of the time between two tracks that is spent cross fading
+     */
+    private long crossfadeOverlapMillis() {
+        SettingsSnapshot settings = SettingsSnapshot.get(this);
+        int fadeSeconds = settings.fadeSeconds;
+        boolean crossFade = settings.crossFade;
+        return crossFade ? fadeSeconds * 1000L : 0;
+    }
+
+    /**
+     * Takes the time from the published state, so that it does not call the player.
+     */
+    private long currentTrackRemainingMillis() {
+        PlaybackSnapshot state = mState;
+        if (state.audioId >= 0 && state.queuePosition == mPlayPos && state.duration > 0) {
+            return Math.max(0, state.duration - state.positionAt(SystemClock.elapsedRealtime()));
+        }
+        return mTimeline.get(mPlayPos);
+    }
+
+    @Override
+    public synchronized long getTimeUntil(int position) {
+        if (mPlayPos < 0 || position <= mPlayPos || position >= mPlayList.size()) return -1;
+        ensureTimeline();
+        long time = currentTrackRemainingMillis()
+                + mTimeline.sum(mPlayPos + 1, position)
+                - (position - mPlayPos) * crossfadeOverlapMillis();
+        return Math.max(0, time);
+    }
+
+    @Override
+    public synchronized long getRemainingTime() {
+        if (mPlayPos < 0 || mPlayPos >= mPlayList.size()) return -1;
+        ensureTimeline();
+        long time = currentTrackRemainingMillis()
+                + mTimeline.sum(mPlayPos + 1, mPlayList.size())
+                - (mPlayList.size() - 1 - mPlayPos) * crossfadeOverlapMillis();
+        return Math.max(0, time);
+    }
+
     @Override
     public synchronized int removeTracks(int first, int last) {
         int numremoved = removeTracksInternal(first, last);
@@ -1321,7 +2614,13 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
     private int removeTracksInternal(int first, int last) {
         if (last < first) return 0;
         if (first < 0) first = 0;
-        if (last >= mPlayListLen) last = mPlayListLen - 1;
+        if (last >= mPlayList.size()) last = mPlayList.size() - 1;
+
+        int playPos = mPlayPos;
+        long[] removed = new long[last - first + 1];
+        for (int i = first; i <= last; i++) {
+            removed[i - first] = mPlayList.get(i);
+        }
 
         boolean gotonext = false;
         if (first <= mPlayPos && mPlayPos <= last) {
@@ -1330,216 +2629,411 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
         } else if (mPlayPos > last) {
             mPlayPos -= (last - first + 1);
         }
-        int num = mPlayListLen - last - 1;
-        for (int i = 0; i < num; i++) {
-            mPlayList[first + i] = mPlayList[last + 1 + i];
+        int modCount = mPlayList.getModCount();
+        mPlayList.remove(first, last);
+        mQueueChanges.removed(mPlayList, modCount, first, last);
+        if (timelineFollows(modCount)) {
+            mTimeline.remove(first, last);
         }
-        mPlayListLen -= last - first + 1;
+        ByteBuffer record = QueueJournal.removeRecord(first, last);
+        rememberQueueEdit(record, QueueJournal.insertRecord(first, removed), playPos);
+        journalQueueEdit(record);
 
         if (gotonext) {
-            if (mPlayListLen == 0) {
+            gotoTrackAfterRemoved();
+        }
+        return last - first + 1;
+    }
+
+    /**
+     * Called when the current track has been removed, and mPlayPos points to the track after it.
+     */
+    private void gotoTrackAfterRemoved() {
+        if (mPlayList.size() == 0) {
+            mPlayPos = -1;
+            newOpenRequest(); // cancel any pending open
+            onPlaybackThread(() -> {
                 stop();
                 if (mSession != null) {
                     deactivateMediaSession();
                 }
                 gotoIdleState();
-                mPlayPos = -1;
-            } else {
-                if (mPlayPos >= mPlayListLen) {
-                    mPlayPos = 0;
-                }
-                boolean wasPlaying = isPlaying();
-                stop();
-
-                if (prepare(mPlayList[mPlayPos])) {
-                    fetchMetadata(mPlayList[mPlayPos]);
-                    if (wasPlaying) play();
-                    notifyChange(META_CHANGED);
-                }
+            });
+        } else {
+            if (mPlayPos >= mPlayList.size()) {
+                mPlayPos = 0;
             }
+            openCurrentTrack(isPlaying(), 0);
         }
-        return last - first + 1;
     }
 
     @Override
-    public synchronized int removeTrack(long id) {
-        int numremoved = 0;
-        for (int i = 0; i < mPlayListLen; i++) {
-            if (mPlayList[i] == id) {
-                numremoved += removeTracksInternal(i, i);
-                i--;
+    public int removeTrack(long id) {
+        return removeTracks(new long[]{id});
+    }
+
+    @Override
+    public synchronized int removeTracks(long[] ids) {
+        LongHashSet idSet = new LongHashSet(ids.length);
+        int removedBefore = 0;
+        int[] positions = new int[0];
+        int count = 0;
+        for (long id : ids) {
+            if (mPlayList.contains(id) && idSet.add(id)) {
+                for (int position : mPlayList.positionsOf(id)) {
+                    if (position < mPlayPos) removedBefore++;
+                    if (count == positions.length) positions = Arrays.copyOf(positions, count * 2 + 8);
+                    positions[count++] = position;
+                }
             }
         }
-        if (numremoved > 0) {
-            notifyChange(QUEUE_CHANGED);
+        if (idSet.isEmpty()) return 0;
+
+        // Undone by inserting the tracks again at the same positions
+        positions = Arrays.copyOf(positions, count);
+        Arrays.sort(positions);
+        long[] removedIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            removedIds[i] = mPlayList.get(positions[i]);
+        }
+        int playPos = mPlayPos;
+
+        boolean currentRemoved = mPlayPos >= 0 && idSet.contains(mPlayList.get(mPlayPos));
+        int crossfadePos = crossfadeQueuePosition();
+        boolean crossfadeRemoved = crossfadePos >= 0 && idSet.contains(mPlayList.get(crossfadePos));
+
+        int modCount = mPlayList.getModCount();
+        int numremoved = mPlayList.removeAll(idSet);
+        if (numremoved == 0) return 0;
+        mQueueChanges.removed(mPlayList, modCount, positions);
+        ByteBuffer record = QueueJournal.removeIdsRecord(ids);
+        rememberQueueEdit(record, QueueJournal.insertAtRecord(positions, removedIds), playPos);
+        journalQueueEdit(record);
+
+        if (mPlayPos >= 0) {
+            // now points to the first remaining track at or after the old position
+            mPlayPos -= removedBefore;
+        }
+        if (currentRemoved) {
+            gotoTrackAfterRemoved();
+        } else if (crossfadeRemoved) {
+            // let the current track fade out on its own
+            onPlaybackThread(() -> {
+                mFader.cancel(mNextPlayer, SystemClock.uptimeMillis());
+                resetPlayer(mNextPlayer);
+                notifyChange(META_CHANGED);
+            });
         }
+        notifyChange(QUEUE_CHANGED);
         return numremoved;
     }
 
     @Override
-    public synchronized void doShuffle() {
-        Random random = new Random();
-        for (int i = 0; i < mPlayListLen; i++) {
-            if (i != mPlayPos) {
-                int randomPosition = random.nextInt(mPlayListLen);
-                while (randomPosition == mPlayPos) randomPosition = random.nextInt(mPlayListLen);
-                long temp = mPlayList[i];
-                mPlayList[i] = mPlayList[randomPosition];
-                mPlayList[randomPosition] = temp;
+    public void doShuffle() {
+        shuffle(SHUFFLE_RANDOM, 0);
+    }
+
+    @Override
+    public synchronized void shuffle(final int mode, final int spacing) {
+        if (mode == SHUFFLE_RANDOM || spacing <= 0) {
+            shuffleRandom();
+            return;
+        }
+
+        // Fetching the metadata takes a while, so do it in the background,
+        // and then shuffle the queue as it is by then
+        fetchGroupsAndShuffle(mode, spacing, mPlayList.toArray(), new LongIntHashMap(), new LongIntHashMap(), 1);
+    }
+
+    /**
+     * Fetches the artist or genre of tracks in the background, and then shuffles the queue.
+     *
+     * @param groupOf      the group number of each track fetched so far, -1 if unknown
+     * @param groupNumbers the group number of each artist or genre id
+     * @param fetches      the number of fetches so far, including this one
+     */
+    private void fetchGroupsAndShuffle(final int mode, final int spacing, final long[] ids,
+                                       final LongIntHashMap groupOf, final LongIntHashMap groupNumbers,
+                                       final int fetches) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            final long[] groups = mode == SHUFFLE_SPACE_GENRES
+                    ? MusicUtils.fetchGenreIds(this, ids)
+                    : MusicUtils.fetchArtistIds(this, ids);
+            mMainHandler.post(() -> {
+                for (int i = 0; i < ids.length; i++) {
+                    int number = -1;
+                    if (groups[i] >= 0) {
+                        number = groupNumbers.get(groups[i], groupNumbers.size());
+                        groupNumbers.put(groups[i], number);
+                    }
+                    groupOf.put(ids[i], number);
+                }
+                shuffleSpaced(mode, spacing, groupOf, groupNumbers, fetches);
+            });
+        });
+    }
+
+    /**
+     * Shuffles the queue with the groups fetched so far, which takes linear time. Tracks added
+     * while fetching are fetched first, a bounded number of times, and then count as unknown.
+     */
+    private synchronized void shuffleSpaced(int mode, int spacing, LongIntHashMap groupOf,
+                                            LongIntHashMap groupNumbers, int fetches) {
+        long[] list = mPlayList.toArray();
+        long[] missing = new long[list.length];
+        int missingCount = 0;
+        for (long id : list) {
+            if (!groupOf.containsKey(id)) {
+                missing[missingCount++] = id;
             }
         }
+        if (missingCount > 0 && fetches < SHUFFLE_MAX_FETCHES) {
+            fetchGroupsAndShuffle(mode, spacing, Arrays.copyOf(missing, missingCount), groupOf, groupNumbers,
+                    fetches + 1);
+            return;
+        }
+
+        long[] groups = new long[list.length];
+        for (int i = 0; i < list.length; i++) {
+            groups[i] = groupOf.get(list[i], -1);
+        }
+        long[] old = list.clone();
+        ShuffleEngine.shuffleSpaced(list, groups, spacing, mPlayPos, new Random());
+        mPlayList.setAll(list);
+        compactQueue();
+        // Unlike a random shuffle, this one cannot be replayed from its seed, since it depends on
+        // the artists or genres, which may have changed by the time it is undone or redone.
+        // Both directions are thus full copies, bounded by the byte limit of the history.
+        rememberQueueEdit(QueueJournal.replaceRecord(list), QueueJournal.replaceRecord(old), mPlayPos);
+        notifyChange(QUEUE_CHANGED);
+    }
+
+    private void shuffleRandom() {
+        // Journal the seed rather than the result, so replay gives the same order
+        long seed = new Random().nextLong();
+        mPlayList.shuffle(new Random(seed), mPlayPos);
+        ByteBuffer record = QueueJournal.shuffleRecord(seed, mPlayPos);
+        rememberQueueEdit(record, QueueJournal.unshuffleRecord(seed, mPlayPos), mPlayPos);
+        journalQueueEdit(record);
         notifyChange(QUEUE_CHANGED);
     }
 
     @Override
     public synchronized void uniqueify() {
-        if (!isPlaying()) {
-            boolean modified = false;
-            Set<Long> found = new HashSet<>();
-            for (int i = mPlayListLen - 1; i >= 0; i--) {
-                if (!found.add(mPlayList[i])) {
-                    removeTracksInternal(i, i);
-                    modified = true;
+        if (mPlayList.size() < UNIQUEIFY_IN_BACKGROUND_SIZE) {
+            uniqueifyInPlace();
+            return;
+        }
+
+        final int playPos = mPlayPos;
+        final int crossfadePos = crossfadeQueuePosition();
+        final int[] keep = new int[]{playPos, crossfadePos};
+
+        // Work on a copy, and swap it in if nothing has changed meanwhile
+        final PlayQueue copy = mPlayList.copy();
+        final int modCount = mPlayList.getModCount();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            final int[] positions = copy.duplicatePositions(keep);
+            final long[] ids = idsAt(copy, positions);
+            copy.uniqueify(keep);
+            mMainHandler.post(() -> {
+                synchronized (MediaPlaybackService.this) {
+                    if (mPlayList.getModCount() == modCount && mPlayPos == playPos
+                            && crossfadeQueuePosition() == crossfadePos) {
+                        mPlayList.takeFrom(copy);
+                        uniqueified(positions, ids, keep, crossfadePos, modCount);
+                    } else {
+                        // Rather than starting over in the background, which could go on for as long
+                        // as the queue keeps changing, do it on the queue as it is now
+                        uniqueifyInPlace();
+                    }
                 }
-            }
-            if (modified) {
-                notifyChange(QUEUE_CHANGED);
-            }
+            });
+        });
+    }
+
+    private void uniqueifyInPlace() {
+        int crossfadePos = crossfadeQueuePosition();
+        int[] keep = new int[]{mPlayPos, crossfadePos};
+        int[] positions = mPlayList.duplicatePositions(keep);
+        long[] ids = idsAt(mPlayList, positions);
+        int modCount = mPlayList.getModCount();
+        mPlayList.uniqueify(keep);
+        uniqueified(positions, ids, keep, crossfadePos, modCount);
+    }
+
+    /**
+     * @param positions      the positions of the removed tracks, before removing them
+     * @param modCountBefore the modification count of the queue before removing them
+     */
+    private void uniqueified(int[] positions, long[] ids, int[] keep, int crossfadePos, int modCountBefore) {
+        mQueueChanges.removed(mPlayList, modCountBefore, positions);
+        if (positions.length > 0) {
+            int playPos = mPlayPos;
+            ByteBuffer record = QueueJournal.uniqueifyRecord(mPlayPos, crossfadePos);
+            mPlayPos = keep[0];
+            // Undone by inserting the removed tracks again at the same positions
+            rememberQueueEdit(record, QueueJournal.insertAtRecord(positions, ids), playPos);
+            journalQueueEdit(record);
+            notifyChange(QUEUE_CHANGED);
+        }
+    }
+
+    private static long[] idsAt(PlayQueue queue, int[] positions) {
+        long[] ids = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            ids[i] = queue.get(positions[i]);
         }
+        return ids;
     }
 
     @Override
     public synchronized void setRepeatMode(int repeatmode) {
         mRepeatMode = repeatmode;
+        revalidateNext();
+        publishState();
         saveQueue(false);
     }
 
     @Override
-    public synchronized int getRepeatMode() {
-        return mRepeatMode;
+    public int getRepeatMode() {
+        return mState.repeatMode;
     }
 
     @Override
-    public synchronized long getAudioId() {
-        if (mPlayPos >= 0 && mPlayers[mCurrentPlayer].isInitialized()) {
-            return mPlayList[mPlayPos];
-        } else {
-            return -1;
-        }
+    public PlaybackSnapshot getState() {
+        return mState;
     }
 
     @Override
-    public synchronized long getCrossfadeAudioId() {
-        if (mPlayPos >= 0 && mPlayers[mNextPlayer].isPlaying()) {
-            return mPlayList[mPlayPos + 1];
-        } else {
-            return -1;
-        }
+    public long getAudioId() {
+        return mState.audioId;
     }
 
     @Override
-    public synchronized int getQueuePosition() {
-        return mPlayPos;
+    public long getCrossfadeAudioId() {
+        return mState.crossfadeAudioId;
     }
 
     @Override
-    public synchronized int getCrossfadeQueuePosition() {
-        if (mPlayPos >= 0 && mPlayers[mNextPlayer].isPlaying()) {
-            return mPlayPos + 1;
-        } else {
-            return -1;
-        }
+    public int getQueuePosition() {
+        return mState.queuePosition;
+    }
+
+    @Override
+    public int getCrossfadeQueuePosition() {
+        return mState.crossfadeQueuePosition;
     }
 
     @Override
-    public synchronized void setQueuePosition(int pos) {
-        if (pos > mPlayListLen - 1) return;
-        stop();
-        mPlayPos = pos;
-        prepareAndPlay(mPlayList[mPlayPos]);
+    public void setQueuePosition(int pos) {
+        synchronized (this) {
+            if (pos > mPlayList.size() - 1) return;
+            mPlayPos = pos;
+        }
+        openCurrentTrack(true, 0);
     }
 
     @Override
-    public synchronized String getArtistName() {
-        return mArtistName;
+    public String getArtistName() {
+        return mState.artistName;
     }
 
     @Override
-    public synchronized long getArtistId() {
-        return mArtistId;
+    public long getArtistId() {
+        return mState.artistId;
     }
 
     @Override
-    public synchronized String getAlbumName() {
-        return mAlbumName;
+    public String getAlbumName() {
+        return mState.albumName;
     }
 
     @Override
-    public synchronized long getAlbumId() {
-        return mAlbumId;
+    public long getAlbumId() {
+        return mState.albumId;
     }
 
     @Override
-    public synchronized String getGenreName() {
-        return mGenreName;
+    public String getGenreName() {
+        return mState.genreName;
     }
 
     @Override
-    public synchronized long getGenreId() {
-        return mGenreId;
+    public long getGenreId() {
+        return mState.genreId;
     }
 
     @Override
-    public synchronized String getMimeType() {
-        return mMimeType;
+    public String getMimeType() {
+        return mState.mimeType;
     }
 
     @Override
-    public synchronized File getFolder() {
-        return mFolder;
+    public File getFolder() {
+        return mState.folder;
     }
 
     @Override
-    public synchronized String getTrackName() {
-        return mTrackName;
+    public String getTrackName() {
+        return mState.trackName;
     }
 
+    /**
+     * Other threads than the playback thread get it from the published state, without asking the player.
+     */
     @Override
     public long duration() {
-        if (mPlayers[mCurrentPlayer].isInitialized()) {
-            return mPlayers[mCurrentPlayer].duration();
+        if (isOnPlaybackThread()) {
+            return mPlayers[mCurrentPlayer].isInitialized() ? mPlayers[mCurrentPlayer].duration() : -1;
         }
-        return -1;
+        PlaybackSnapshot state = mState;
+        return state.audioId >= 0 ? state.duration : -1;
     }
 
+    /**
+     * Other threads than the playback thread extrapolate it from the published state, without asking the player.
+     */
     @Override
     public long position() {
-        if (mPlayers[mCurrentPlayer].isInitialized()) {
-            return mPlayers[mCurrentPlayer].currentPosition();
+        if (isOnPlaybackThread()) {
+            return mPlayers[mCurrentPlayer].isInitialized() ? mPlayers[mCurrentPlayer].currentPosition() : -1;
         }
-        return -1;
+        PlaybackSnapshot state = mState;
+        return state.audioId >= 0 ? state.positionAt(SystemClock.elapsedRealtime()) : -1;
     }
 
     @Override
-    public synchronized void seek(long pos) {
+    public void seek(final long pos) {
+        onPlaybackThread(() -> seekInternal(pos));
+    }
+
+    private void seekInternal(long pos) {
         if (mPlayers[mCurrentPlayer].isInitialized()) {
-            mPlaybackHander.removeMessages(DUCK);
-            mPlaybackHander.removeMessages(FADEUP);
             mPlaybackHander.removeMessages(FADEDOWN);
             mPlaybackHander.removeMessages(CROSSFADE);
             if (pos < 0) pos = 0;
             if (pos > mPlayers[mCurrentPlayer].duration()) pos = mPlayers[mCurrentPlayer].duration();
             mPlayers[mCurrentPlayer].seek(pos);
+            updatePosition();
 
             if (mIsSupposedToBePlaying) {
-                scheduleFadeOut();
+                if (mFader.target(mCurrentPlayer) == DUCK_VOLUME) {
+                    scheduleFadeOut();
+                } else {
+                    // back up from a fade out in progress, which then schedules the fade out again
+                    fadeIn(mCurrentPlayer);
+                }
             }
         }
     }
 
     private void scheduleFadeOut() {
-        int fadeOutSeconds = Integer.parseInt(mSettings.getString(SettingsActivity.FADE_SECONDS, "0"));
-        boolean crossFade = mSettings.getBoolean(SettingsActivity.CROSS_FADE, false);
+        mPlaybackHander.removeMessages(FADEDOWN);
+        mPlaybackHander.removeMessages(CROSSFADE);
+        SettingsSnapshot settings = SettingsSnapshot.get(this);
+        int fadeOutSeconds = settings.fadeSeconds;
+        boolean crossFade = settings.crossFade;
 
         if (fadeOutSeconds > 0) {
             long timeLeftMillis = mPlayers[mCurrentPlayer].duration() - mPlayers[mCurrentPlayer].currentPosition();
@@ -1556,9 +3050,74 @@ public abstract class MediaPlaybackService extends Service implements MediaPlayb
         }
     }
 
+    /**
+     * Fades the player in to full volume, from where it is, and then schedules the fade out.
+     * Runs on the playback thread, like the other fade methods.
+     */
+    private void fadeIn(int player) {
+        SettingsSnapshot settings = SettingsSnapshot.get(this);
+        rampVolume(player, 1.0f, Math.max(settings.fadeSeconds, 1) * 1000, settings.fadeCurve, this::scheduleFadeOut);
+    }
+
+    private void fadeOut(int player) {
+        SettingsSnapshot settings = SettingsSnapshot.get(this);
+        rampVolume(player, 0f, Math.max(settings.fadeSeconds, 1) * 1000, settings.fadeCurve, null);
+    }
+
+    private void duck(int player) {
+        rampVolume(player, DUCK_VOLUME, DUCK_MILLIS, VolumeFader.LINEAR, null);
+    }
+
+    /**
+     * Ramps the volume of the player from where it is to the target, replacing any ramp in progress.
+     *
+     * @param fullMillis how long a ramp over the full range takes
+     */
+    private void rampVolume(int player, float target, long fullMillis, int curve, Runnable onDone) {
+        long now = SystemClock.uptimeMillis();
+        long durationMillis = (long) (Math.abs(target - mFader.volume(player, now)) * fullMillis);
+        mFader.rampTo(player, target, durationMillis, curve, now, onDone);
+        applyVolumes();
+    }
+
+    private void setVolume(int player, float volume) {
+        mFader.set(player, volume);
+        mPlayers[player].setVolume(volume);
+    }
+
+    /**
+     * Stops the fades, holding the volumes reached so far, and cancels the scheduled fade out.
+     */
+    private void cancelFades() {
+        mPlaybackHander.removeMessages(FADEDOWN);
+        mPlaybackHander.removeMessages(CROSSFADE);
+        mPlaybackHander.removeMessages(FADE_TICK);
+        long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < mPlayers.length; i++) {
+            mFader.cancel(i, now);
+        }
+    }
+
+    /**
+     * Applies the volumes of the players which are fading, and schedules the next tick while any of them is.
+     */
+    private void applyVolumes() {
+        long now = SystemClock.uptimeMillis();
+        int fading = mFader.advance(now);
+        for (int i = 0; i < mPlayers.length; i++) {
+            if ((fading & (1 << i)) != 0) {
+                mPlayers[i].setVolume(mFader.volume(i, now));
+            }
+        }
+        mPlaybackHander.removeMessages(FADE_TICK);
+        if (mFader.isRamping()) {
+            mPlaybackHander.sendEmptyMessageDelayed(FADE_TICK, FADE_TICK_MILLIS);
+        }
+    }
+
     @Override
     public int getAudioSessionId() {
-        return mPlayers[mCurrentPlayer].getAudioSessionId();
+        return mAudioSessionId;
     }
 
 }
@@ -33,7 +33,6 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
-import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.SubMenu;
@@ -44,6 +43,7 @@ import nu.staldal.djdplayer.provider.ID3Utils;
 import java.io.CharArrayWriter;
 import java.io.File;
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.Locale;
@@ -173,12 +173,7 @@ public class MusicUtils {
         }
         long [] list = new long[len];
         cursor.moveToFirst();
-        int colidx;
-        try {
-            colidx = cursor.getColumnIndexOrThrow(MediaStore.Audio.Playlists.Members.AUDIO_ID);
-        } catch (IllegalArgumentException ex) {
-            colidx = cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns._ID);
-        }
+        int colidx = getSongIdColumn(cursor);
         for (int i = 0; i < len; i++) {
             list[i] = cursor.getLong(colidx);
             cursor.moveToNext();
@@ -186,6 +181,17 @@ public class MusicUtils {
         return list;
     }
 
+    /**
+     * @return the index of the column with the track id, in a cursor with tracks or playlist members
+     */
+    public static int getSongIdColumn(Cursor cursor) {
+        try {
+            return cursor.getColumnIndexOrThrow(MediaStore.Audio.Playlists.Members.AUDIO_ID);
+        } catch (IllegalArgumentException ex) {
+            return cursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns._ID);
+        }
+    }
+
     /**
      * Fills out the given submenu with items for "new playlist" and
      * any existing playlists. When the user selects an item, the
@@ -243,13 +249,13 @@ public class MusicUtils {
         if (c != null) {
 
             // step 1: remove selected tracks from the current playlist
+            long[] ids = new long[c.getCount()];
             c.moveToFirst();
-            while (! c.isAfterLast()) {
-                // remove from current playlist
-                long id = c.getLong(0);
-                sService.removeTrack(id);
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = c.getLong(0);
                 c.moveToNext();
             }
+            sService.removeTracks(ids);
 
             // step 2: remove selected tracks from the database
             context.getContentResolver().delete(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, where.toString(), null);
@@ -283,8 +289,7 @@ public class MusicUtils {
     }
 
     public static void playSong(Context context, long id) {
-        switch (PreferenceManager.getDefaultSharedPreferences(context).getString(
-                SettingsActivity.CLICK_ON_SONG, SettingsActivity.PLAY_NEXT)) {
+        switch (SettingsSnapshot.get(context).clickOnSong) {
             case SettingsActivity.PLAY_NOW:
                 MusicUtils.queueAndPlayImmediately(context, new long[] { id });
                 break;
@@ -347,6 +352,39 @@ public class MusicUtils {
         sService.enqueue(songs, MediaPlayback.NOW);
     }
 
+    /**
+     * Plays the tracks of a {@link nu.staldal.djdplayer.provider.MusicContract} members URI, replacing the play queue.
+     * The tracks are resolved by the service, in the background.
+     */
+    public static void playAll(Uri members, boolean shuffle) {
+        if (sService == null) {
+            return;
+        }
+        sService.enqueue(members, MediaPlayback.REPLACE, shuffle);
+    }
+
+    public static void queue(Uri members, boolean shuffle) {
+        if (sService == null) {
+            return;
+        }
+        sService.enqueue(members, MediaPlayback.LAST, shuffle);
+    }
+
+    public static void queueNext(Context context, Uri members, boolean shuffle) {
+        if (sService == null) {
+            return;
+        }
+        sService.enqueue(members, MediaPlayback.NEXT, shuffle);
+        Toast.makeText(context, R.string.will_play_next, Toast.LENGTH_SHORT).show();
+    }
+
+    public static void interleave(Uri members, boolean shuffle, int currentCount, int newCount) {
+        if (sService == null) {
+            return;
+        }
+        sService.interleave(members, shuffle, currentCount, newCount);
+    }
+
     private static ContentValues[] sContentValuesCache = null;
 
     /**
@@ -465,13 +503,109 @@ public class MusicUtils {
     }
 
     public static void shuffleArray(long[] array) {
-        Random random = new Random();
-        for (int i=0; i < array.length; i++) {
-            int randomPosition = random.nextInt(array.length);
-            long temp = array[i];
-            array[i] = array[randomPosition];
-            array[randomPosition] = temp;
+        ShuffleEngine.shuffle(array, -1, new Random());
+    }
+
+    private static final int BULK_QUERY_CHUNK = 500;
+
+    /**
+     * Fetches the artist id of each track in one query per chunk of tracks.
+     *
+     * @return the artist id of each track, or -1 if unknown
+     */
+    public static long[] fetchArtistIds(Context context, long[] songIds) {
+        long[] sorted = sortedUnique(songIds);
+        return lookup(songIds, sorted, fetchColumn(context, sorted, MediaStore.Audio.AudioColumns.ARTIST_ID));
+    }
+
+    /**
+     * Fetches the duration of each track, with one query per chunk of tracks rather than one per track.
+     *
+     * @return the duration of each track in milliseconds, or -1 if unknown
+     */
+    public static long[] fetchDurations(Context context, long[] songIds) {
+        long[] sorted = sortedUnique(songIds);
+        return lookup(songIds, sorted, fetchColumn(context, sorted, MediaStore.Audio.AudioColumns.DURATION));
+    }
+
+    private static long[] fetchColumn(Context context, long[] sorted, String column) {
+        long[] values = new long[sorted.length];
+        Arrays.fill(values, -1);
+
+        String[] cols = new String[]{MediaStore.Audio.AudioColumns._ID, column};
+        for (int start = 0; start < sorted.length; start += BULK_QUERY_CHUNK) {
+            int end = Math.min(sorted.length, start + BULK_QUERY_CHUNK);
+            StringBuilder where = new StringBuilder();
+            where.append(MediaStore.Audio.AudioColumns._ID + " IN (");
+            for (int i = start; i < end; i++) {
+                where.append(sorted[i]);
+                if (i < end - 1) {
+                    where.append(",");
+                }
+            }
+            where.append(")");
+            Cursor c = query(context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, cols, where.toString(), null, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    int i = Arrays.binarySearch(sorted, c.getLong(0));
+                    if (i >= 0) values[i] = c.getLong(1);
+                }
+                c.close();
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Fetches the genre id of each track, with one query per genre rather than one per track.
+     *
+     * @return the genre id of each track, or -1 if unknown
+     */
+    public static long[] fetchGenreIds(Context context, long[] songIds) {
+        long[] sorted = sortedUnique(songIds);
+        long[] genreIds = new long[sorted.length];
+        Arrays.fill(genreIds, -1);
+
+        Cursor genres = query(context, MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Audio.Genres._ID}, null, null, null);
+        if (genres != null) {
+            while (genres.moveToNext()) {
+                long genreId = genres.getLong(0);
+                Cursor members = query(context, MediaStore.Audio.Genres.Members.getContentUri("external", genreId),
+                        new String[]{MediaStore.Audio.Genres.Members.AUDIO_ID}, null, null, null);
+                if (members != null) {
+                    while (members.moveToNext()) {
+                        int i = Arrays.binarySearch(sorted, members.getLong(0));
+                        if (i >= 0 && genreIds[i] == -1) genreIds[i] = genreId;
+                    }
+                    members.close();
+                }
+            }
+            genres.close();
+        }
+
+        return lookup(songIds, sorted, genreIds);
+    }
+
+    private static long[] sortedUnique(long[] list) {
+        long[] sorted = list.clone();
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, unique);
+    }
+
+    private static long[] lookup(long[] keys, long[] sortedKeys, long[] values) {
+        long[] result = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = values[Arrays.binarySearch(sortedKeys, keys[i])];
         }
+        return result;
     }
 
     public static void setIntPref(Context context, String name, int value) {
@@ -22,24 +22,36 @@ import android.media.MediaPlayer;
 import android.media.audiofx.AudioEffect;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
 
+/**
+ * The MediaPlayer is created on the thread of the handler, so that its callbacks come on that thread.
+ * The methods which use it must only be called on that thread too.
+ */
 public class MyMediaPlayer {
     private static final String LOGTAG = "MyMediaPlayer";
 
     public static final int TRACK_ENDED = 1;
     public static final int RELEASE_WAKELOCK = 2;
     public static final int SERVER_DIED = 3;
+    public static final int PREPARED = 4; // arg1 is 1 if successful, 0 if failed
 
     private final Context mContext;
     private final Handler mHandler;
     private final PowerManager.WakeLock mWakeLock;
 
     private MediaPlayer mMediaPlayer;
-    private boolean mIsInitialized;
+    private volatile boolean mIsInitialized;
+    private volatile boolean mIsPreparing;
+    private volatile int mPrepareGeneration = 0; // to ignore callbacks from an asynchronous prepare which has been superseded
+    private MyMediaPlayer mNext = null; // started by the framework without gap when this one completes
+    private volatile long mCompletionTime = 0;
+    private volatile long mStartTime = 0;
 
     public MyMediaPlayer(Context context, Handler handler) {
         this.mContext = context;
@@ -49,10 +61,18 @@ public class MyMediaPlayer {
         mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, this.getClass().getName());
         mWakeLock.setReferenceCounted(false);
 
-        mMediaPlayer = new MediaPlayer();
-        mMediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
-
         mIsInitialized = false;
+
+        if (Looper.myLooper() == handler.getLooper()) {
+            createMediaPlayer();
+        } else {
+            handler.post(this::createMediaPlayer);
+        }
+    }
+
+    private void createMediaPlayer() {
+        mMediaPlayer = new MediaPlayer();
+        mMediaPlayer.setWakeMode(mContext, PowerManager.PARTIAL_WAKE_LOCK);
     }
 
     private final MediaPlayer.OnCompletionListener listener = new MediaPlayer.OnCompletionListener() {
@@ -63,46 +83,66 @@ public class MyMediaPlayer {
             // This temporary wakelock is released when the RELEASE_WAKELOCK
             // message is processed, but just in case, put a timeout on it.
             mWakeLock.acquire(30000);
+            mCompletionTime = SystemClock.elapsedRealtime();
             mHandler.sendEmptyMessage(TRACK_ENDED);
             mHandler.sendEmptyMessage(RELEASE_WAKELOCK);
         }
     };
 
+    private final MediaPlayer.OnInfoListener infoListener = new MediaPlayer.OnInfoListener() {
+        public boolean onInfo(MediaPlayer mp, int what, int extra) {
+            if (what == MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT) {
+                mStartTime = SystemClock.elapsedRealtime();
+                return true;
+            }
+            return false;
+        }
+    };
+
     private final MediaPlayer.OnErrorListener errorListener = new MediaPlayer.OnErrorListener() {
         public boolean onError(MediaPlayer mp, int what, int extra) {
             switch (what) {
                 case MediaPlayer.MEDIA_ERROR_SERVER_DIED:
                     Log.i(LOGTAG, "MediaPlayer died, restarting");
-                    mIsInitialized = false;
-                    mMediaPlayer.release();
-                    // Creating a new MediaPlayer and settings its wake mode does not
-                    // require the media service, so it's OK to do this now, while the
-                    // service is still being restarted
-                    mMediaPlayer = new MediaPlayer();
-                    mMediaPlayer.setWakeMode(mContext, PowerManager.PARTIAL_WAKE_LOCK);
-                    mHandler.sendMessageDelayed(mHandler.obtainMessage(SERVER_DIED), 2000);
+                    // On the thread of the handler, since the MediaPlayer may be in use there
+                    mHandler.post(() -> restart(mp));
                     return true;
 
                 default:
                     Log.w(LOGTAG, "MediaPlayer error: " + what + "," + extra);
+                    if (mIsPreparing) {
+                        final int generation = mPrepareGeneration;
+                        mHandler.post(() -> preparedAsync(generation, null));
+                        return true;
+                    }
                     return false;
             }
         }
     };
 
+    private void restart(MediaPlayer died) {
+        if (died != mMediaPlayer) {
+            // already restarted
+            return;
+        }
+        mIsInitialized = false;
+        mIsPreparing = false;
+        mNext = null;
+        mMediaPlayer.release();
+        // Creating a new MediaPlayer and settings its wake mode does not
+        // require the media service, so it's OK to do this now, while the
+        // service is still being restarted
+        createMediaPlayer();
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(SERVER_DIED), 2000);
+    }
+
     /**
      * @return true if successful, false if failed
      */
     public boolean prepare(String path) {
         try {
-            mMediaPlayer.reset();
-            mMediaPlayer.setOnPreparedListener(null);
-            if (path.startsWith("content://")) {
-                mMediaPlayer.setDataSource(mContext, Uri.parse(path));
-            } else {
-                mMediaPlayer.setDataSource(path);
-            }
-            mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            reset();
+            setDataSource(path);
             mMediaPlayer.prepare();
         } catch (IOException | IllegalArgumentException e) {
             Log.w(LOGTAG, "Couldn't open audio file: " + path, e);
@@ -111,6 +151,68 @@ public class MyMediaPlayer {
         }
         mMediaPlayer.setOnCompletionListener(listener);
         mMediaPlayer.setOnErrorListener(errorListener);
+        prepared(path);
+        return true;
+    }
+
+    /**
+     * Prepares in the background, and sends PREPARED to the handler when done.
+     *
+     * @return false if failed right away, then PREPARED is not sent
+     */
+    public boolean prepareAsync(final String path) {
+        try {
+            reset();
+            setDataSource(path);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(LOGTAG, "Couldn't open audio file: " + path, e);
+            return false;
+        }
+        // The callbacks come on the thread which created the MediaPlayer, so continue on the thread of the handler
+        final int generation = mPrepareGeneration;
+        mMediaPlayer.setOnPreparedListener(mp -> mHandler.post(() -> preparedAsync(generation, path)));
+        mMediaPlayer.setOnErrorListener(errorListener);
+        mIsPreparing = true;
+        mMediaPlayer.prepareAsync();
+        return true;
+    }
+
+    /**
+     * @param path null if failed
+     */
+    private void preparedAsync(int generation, String path) {
+        if (generation != mPrepareGeneration || !mIsPreparing) {
+            // superseded
+            return;
+        }
+        mIsPreparing = false;
+        if (path != null) {
+            mMediaPlayer.setOnCompletionListener(listener);
+            prepared(path);
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(PREPARED, path != null ? 1 : 0, 0));
+    }
+
+    private void reset() {
+        mPrepareGeneration++;
+        mIsInitialized = false;
+        mIsPreparing = false;
+        mNext = null;
+        mMediaPlayer.reset();
+        mMediaPlayer.setOnPreparedListener(null);
+    }
+
+    private void setDataSource(String path) throws IOException {
+        if (path.startsWith("content://")) {
+            mMediaPlayer.setDataSource(mContext, Uri.parse(path));
+        } else {
+            mMediaPlayer.setDataSource(path);
+        }
+        mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+    }
+
+    private void prepared(String path) {
+        mMediaPlayer.setOnInfoListener(infoListener);
 
         Intent i = new Intent(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
         i.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, getAudioSessionId());
@@ -120,7 +222,6 @@ public class MyMediaPlayer {
         Log.d(LOGTAG, "Prepared song: " + path);
 
         mIsInitialized = true;
-        return true;
     }
 
     public boolean isInitialized() {
@@ -133,6 +234,44 @@ public class MyMediaPlayer {
 
     public void start() {
         mMediaPlayer.start();
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Links a prepared player to be started without gap when this one completes.
+     *
+     * @param next null to unlink
+     */
+    public void setNext(MyMediaPlayer next) {
+        if (next == mNext) {
+            return;
+        }
+        try {
+            mMediaPlayer.setNextMediaPlayer(next != null ? next.mMediaPlayer : null);
+            mNext = next;
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.w(LOGTAG, "Unable to set next player", e);
+            mNext = null;
+        }
+    }
+
+    public boolean hasNext() {
+        return mNext != null;
+    }
+
+    /**
+     * @return when this player last completed, from SystemClock.elapsedRealtime()
+     */
+    public long completionTime() {
+        return mCompletionTime;
+    }
+
+    /**
+     * @return when this player was last started, by start() or as the next player of another one,
+     * from SystemClock.elapsedRealtime()
+     */
+    public long startTime() {
+        return mStartTime;
     }
 
     public void pause() {
@@ -140,7 +279,7 @@ public class MyMediaPlayer {
     }
 
     public void stop() {
-        mMediaPlayer.reset();
+        reset();
         mIsInitialized = false;
     }
 
@@ -39,8 +39,7 @@ public class PickMusicFolderActivity extends Activity {
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
-        String currentFolder = PreferenceManager.getDefaultSharedPreferences(this).getString(SettingsActivity.MUSIC_FOLDER,
-                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC).getAbsolutePath());
+        String currentFolder = SettingsSnapshot.get(this).musicFolder;
 
         Intent intent = new Intent("org.openintents.action.PICK_DIRECTORY");
         if (getPackageManager().resolveActivity(intent, 0) != null) {
@@ -0,0 +1,586 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The play queue, stored as a gap buffer of track ids.
+ *
+ * Edits are done by first moving the gap to the edit position, so a sequence of edits
+ * close to each other (typically right after the play position) does not have to shift
+ * the whole tail of the queue. The buffer is shrunk when it gets mostly empty.
+ *
+ * The number of occurrences of each track is maintained incrementally. Since the positions
+ * after an edit shift, the index from track to positions is instead rebuilt on demand, at most
+ * once per modification, and lookups are constant time as long as the queue does not change.
+ *
+ * Not thread safe.
+ */
+public class PlayQueue {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mBuffer = new long[MIN_CAPACITY];
+    private int mGapStart = 0;
+    private int mGapEnd = MIN_CAPACITY;
+    private int mModCount = 0;
+    private LongIntHashMap mCounts = new LongIntHashMap();
+
+    // Index from track to positions, valid when mIndexModCount == mModCount
+    private int mIndexModCount = -1;
+    private LongIntHashMap mFirstPosition;
+    private int[] mNextPosition;
+
+    /**
+     * @return a counter which is increased by every modification
+     */
+    public int getModCount() {
+        return mModCount;
+    }
+
+    public PlayQueue copy() {
+        PlayQueue copy = new PlayQueue();
+        copy.mBuffer = mBuffer.clone();
+        copy.mGapStart = mGapStart;
+        copy.mGapEnd = mGapEnd;
+        copy.mCounts = new LongIntHashMap(mCounts);
+        return copy;
+    }
+
+    /**
+     * Replaces the contents of this queue with the contents of another one, without copying.
+     * The other queue must not be used afterwards.
+     */
+    public void takeFrom(PlayQueue other) {
+        mBuffer = other.mBuffer;
+        mGapStart = other.mGapStart;
+        mGapEnd = other.mGapEnd;
+        mCounts = other.mCounts;
+        mModCount++;
+    }
+
+    /**
+     * @return whether the track is in the queue, in constant time
+     */
+    public boolean contains(long id) {
+        return mCounts.containsKey(id);
+    }
+
+    /**
+     * @return the number of times the track occurs in the queue, in constant time
+     */
+    public int count(long id) {
+        return mCounts.get(id, 0);
+    }
+
+    /**
+     * @return the positions of the track in the queue, in ascending order
+     */
+    public int[] positionsOf(long id) {
+        int[] positions = new int[count(id)];
+        if (positions.length > 0) {
+            ensureIndex();
+            int n = 0;
+            for (int i = mFirstPosition.get(id, -1); i >= 0; i = mNextPosition[i]) {
+                positions[n++] = i;
+            }
+        }
+        return positions;
+    }
+
+    private void ensureIndex() {
+        if (mIndexModCount == mModCount) return;
+        int size = size();
+        mFirstPosition = new LongIntHashMap(mCounts.size());
+        if (mNextPosition == null || mNextPosition.length < size || mNextPosition.length > size * 4) {
+            mNextPosition = new int[size];
+        }
+        for (int i = size - 1; i >= 0; i--) {
+            long id = get(i);
+            mNextPosition[i] = mFirstPosition.get(id, -1);
+            mFirstPosition.put(id, i);
+        }
+        mIndexModCount = mModCount;
+    }
+
+    public int size() {
+        return mBuffer.length - (mGapEnd - mGapStart);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public long get(int index) {
+        return mBuffer[index < mGapStart ? index : index + (mGapEnd - mGapStart)];
+    }
+
+    public void set(int index, long id) {
+        int i = index < mGapStart ? index : index + (mGapEnd - mGapStart);
+        mCounts.add(mBuffer[i], -1);
+        mCounts.add(id, 1);
+        mBuffer[i] = id;
+        mModCount++;
+    }
+
+    public void clear() {
+        mModCount++;
+        mBuffer = new long[MIN_CAPACITY];
+        mGapStart = 0;
+        mGapEnd = MIN_CAPACITY;
+        mCounts = new LongIntHashMap();
+    }
+
+    /**
+     * Replaces the whole queue with a copy of the given list.
+     */
+    public void setAll(long[] list) {
+        setAll(list, list.length);
+    }
+
+    /**
+     * Replaces the whole queue with a copy of the first len items of the given list.
+     */
+    public void setAll(long[] list, int len) {
+        replaceBuffer(list, len);
+        mCounts = new LongIntHashMap(len);
+        for (int i = 0; i < len; i++) {
+            mCounts.add(list[i], 1);
+        }
+    }
+
+    private void replaceBuffer(long[] list, int len) {
+        int capacity = Math.max(len * 2, MIN_CAPACITY);
+        mBuffer = new long[capacity];
+        System.arraycopy(list, 0, mBuffer, 0, len);
+        mGapStart = len;
+        mGapEnd = capacity;
+        mModCount++;
+    }
+
+    public void append(long id) {
+        ensureGap(1);
+        moveGapTo(size());
+        mBuffer[mGapStart++] = id;
+        mCounts.add(id, 1);
+        mModCount++;
+    }
+
+    /**
+     * Inserts a list of tracks at the specified position, which is clamped to the queue size.
+     *
+     * @return the position where the list was actually inserted
+     */
+    public int insert(int position, long[] list) {
+        int size = size();
+        if (position > size) position = size;
+        if (position < 0) position = 0;
+
+        ensureGap(list.length);
+        moveGapTo(position);
+        System.arraycopy(list, 0, mBuffer, mGapStart, list.length);
+        mGapStart += list.length;
+        for (long id : list) {
+            mCounts.add(id, 1);
+        }
+        mModCount++;
+        return position;
+    }
+
+    /**
+     * Removes the tracks at position first to last, inclusive.
+     * The range must be within the queue.
+     */
+    public void remove(int first, int last) {
+        moveGapTo(last + 1);
+        for (int i = first; i <= last; i++) {
+            mCounts.add(mBuffer[i], -1);
+        }
+        mGapStart = first;
+        mModCount++;
+        shrinkIfSparse();
+    }
+
+    /**
+     * Removes all occurrences of the given ids, in one pass.
+     *
+     * @return the number of tracks removed
+     */
+    public int removeAll(LongHashSet ids) {
+        moveGapTo(size());
+        int dest = 0;
+        for (int i = 0; i < mGapStart; i++) {
+            if (!ids.contains(mBuffer[i])) {
+                mBuffer[dest++] = mBuffer[i];
+            } else {
+                mCounts.remove(mBuffer[i]);
+            }
+        }
+        int removed = mGapStart - dest;
+        mGapStart = dest;
+        mModCount++;
+        shrinkIfSparse();
+        return removed;
+    }
+
+    /**
+     * Moves the item at index from to index to, shifting the items in between.
+     */
+    public void move(int from, int to) {
+        if (from == to) return;
+        long id = get(from);
+        moveGapTo(from + 1);
+        mGapStart--;
+        moveGapTo(to);
+        mBuffer[mGapStart++] = id;
+        mModCount++;
+    }
+
+    /**
+     * Moves the items at index first to last, inclusive, so that the first of them ends up at index to,
+     * shifting the items in between. The cost is proportional to the length of the block and the
+     * distance it is moved, not to the size of the queue.
+     */
+    public void moveBlock(int first, int last, int to) {
+        if (first == to) return;
+        int length = last - first + 1;
+        long[] block = new long[length];
+        moveGapTo(last + 1);
+        System.arraycopy(mBuffer, first, block, 0, length);
+        mGapStart = first;
+        moveGapTo(to);
+        System.arraycopy(block, 0, mBuffer, mGapStart, length);
+        mGapStart += length;
+        mModCount++;
+    }
+
+    /**
+     * @return the new index of the item at position, after moveBlock(first, last, to)
+     */
+    public static int positionAfterMove(int position, int first, int last, int to) {
+        int length = last - first + 1;
+        if (position >= first && position <= last) {
+            return position - first + to;
+        } else if (to > first && position > last && position < to + length) {
+            return position - length;
+        } else if (to < first && position >= to && position < first) {
+            return position + length;
+        } else {
+            return position;
+        }
+    }
+
+    public void swap(int i, int j) {
+        int gap = mGapEnd - mGapStart;
+        if (i >= mGapStart) i += gap;
+        if (j >= mGapStart) j += gap;
+        long tmp = mBuffer[i];
+        mBuffer[i] = mBuffer[j];
+        mBuffer[j] = tmp;
+        mModCount++;
+    }
+
+    /**
+     * Removes duplicate tracks in one pass, keeping the last occurrence of each track.
+     * The items at the positions in keep (-1 for none) are always kept, in place of
+     * other occurrences of the same tracks, and the array is updated with their new positions.
+     *
+     * @return the number of tracks removed
+     */
+    public int uniqueify(int[] keep) {
+        int size = size();
+        LongHashSet kept = new LongHashSet(size);
+        for (int position : keep) {
+            if (position >= 0) kept.add(get(position));
+        }
+        int[] newIndex = new int[keep.length];
+
+        // Compact towards the end of the buffer, which is safe to do in place
+        // since we never write before the item we read
+        moveGapTo(size);
+        int dest = mBuffer.length;
+        for (int i = size - 1; i >= 0; i--) {
+            long id = mBuffer[i];
+            int k = indexOf(keep, i);
+            if (k >= 0) {
+                mBuffer[--dest] = id;
+                newIndex[k] = dest;
+            } else if (kept.add(id)) {
+                mBuffer[--dest] = id;
+            } else {
+                mCounts.add(id, -1);
+            }
+        }
+        for (int k = 0; k < keep.length; k++) {
+            if (keep[k] >= 0) keep[k] = newIndex[k] - dest;
+        }
+        int removed = size - (mBuffer.length - dest);
+        mGapStart = 0;
+        mGapEnd = dest;
+        mModCount++;
+        shrinkIfSparse();
+        return removed;
+    }
+
+    /**
+     * @return the positions, ascending, of the items {@link #uniqueify(int[])} would remove, given the same keep
+     */
+    public int[] duplicatePositions(int[] keep) {
+        int size = size();
+        LongHashSet kept = new LongHashSet(size);
+        for (int position : keep) {
+            if (position >= 0) kept.add(get(position));
+        }
+        int[] positions = new int[0];
+        int count = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            if (indexOf(keep, i) < 0 && !kept.add(get(i))) {
+                if (count == positions.length) positions = Arrays.copyOf(positions, count * 2 + 8);
+                positions[count++] = i;
+            }
+        }
+        int[] ascending = new int[count];
+        for (int i = 0; i < count; i++) {
+            ascending[i] = positions[count - 1 - i];
+        }
+        return ascending;
+    }
+
+    private static int indexOf(int[] array, int value) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == value) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Shuffles the queue, leaving the item at keepPosition (if not -1) in place.
+     * Given the same random sequence, the result is the same.
+     */
+    public void shuffle(Random random, int keepPosition) {
+        long[] list = toArray();
+        ShuffleEngine.shuffle(list, keepPosition, random);
+        replaceBuffer(list, list.length);
+    }
+
+    /**
+     * Undoes {@link #shuffle(Random, int)}, given a random sequence starting from the same state.
+     */
+    public void unshuffle(Random random, int keepPosition) {
+        int size = size();
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        ShuffleEngine.shuffle(order, keepPosition, random);
+        long[] list = new long[size];
+        for (int i = 0; i < size; i++) {
+            list[(int) order[i]] = get(i);
+        }
+        replaceBuffer(list, size);
+    }
+
+    /**
+     * Inserts ids[i] at positions[i], for each i in order, in one pass.
+     * The positions must be ascending, and refer to the queue after the insertion.
+     */
+    public void insertAt(int[] positions, long[] ids) {
+        int size = size();
+        long[] list = new long[size + ids.length];
+        int next = 0;
+        int source = 0;
+        for (int i = 0; i < list.length; i++) {
+            if (next < positions.length && positions[next] == i) {
+                list[i] = ids[next++];
+            } else {
+                list[i] = get(source++);
+            }
+        }
+        replaceBuffer(list, list.length);
+        for (long id : ids) {
+            mCounts.add(id, 1);
+        }
+    }
+
+    /**
+     * Interleaves the queue with a new list, taking currentCount items from the queue
+     * and then newCount items from the new list, until both are exhausted.
+     */
+    public void interleave(long[] newList, int currentCount, int newCount) {
+        interleave(0, new long[][]{newList}, new int[]{currentCount, newCount});
+    }
+
+    /**
+     * Interleaves the tracks from position start and onwards with the given sources, in place.
+     * In each round, weights[0] tracks are taken from the queue and then weights[i] tracks
+     * from sources[i - 1], skipping sources which are exhausted.
+     *
+     * @param start   where to start, the tracks before are not affected
+     * @param weights one more than sources, all positive
+     */
+    public void interleave(int start, long[][] sources, int[] weights) {
+        int[] lengths = new int[sources.length + 1];
+        lengths[0] = size() - checkStart(start);
+        int added = 0;
+        for (int i = 0; i < sources.length; i++) {
+            lengths[i + 1] = sources[i].length;
+            added += sources[i].length;
+        }
+        InterleaveOrder order = new InterleaveOrder(lengths, weights);
+
+        // Read the rest of the queue from after the gap, and write the result at the start of the gap.
+        // The gap is at least as large as what is added, so writing never catches up with reading.
+        ensureGap(added);
+        moveGapTo(start);
+        int read = mGapEnd;
+        int[] next = new int[sources.length];
+        for (int n = lengths[0] + added; n > 0; n--) {
+            int source = order.next();
+            if (source == 0) {
+                mBuffer[mGapStart++] = mBuffer[read++];
+            } else {
+                long id = sources[source - 1][next[source - 1]++];
+                mBuffer[mGapStart++] = id;
+                mCounts.add(id, 1);
+            }
+        }
+        mGapEnd = mBuffer.length;
+        mModCount++;
+    }
+
+    /**
+     * Reverses {@link #interleave(int, long[][], int[])}, by removing the interleaved tracks in place.
+     *
+     * @param sourceLengths the lengths of the interleaved sources
+     */
+    public void uninterleave(int start, int[] sourceLengths, int[] weights) {
+        int[] lengths = new int[sourceLengths.length + 1];
+        lengths[0] = size() - checkStart(start);
+        int total = lengths[0];
+        for (int i = 0; i < sourceLengths.length; i++) {
+            lengths[i + 1] = sourceLengths[i];
+            lengths[0] -= sourceLengths[i];
+        }
+        if (lengths[0] < 0) {
+            throw new IllegalArgumentException("More interleaved tracks than in the queue");
+        }
+        InterleaveOrder order = new InterleaveOrder(lengths, weights);
+
+        moveGapTo(start);
+        int read = mGapEnd;
+        for (int n = total; n > 0; n--) {
+            long id = mBuffer[read++];
+            if (order.next() == 0) {
+                mBuffer[mGapStart++] = id;
+            } else {
+                mCounts.add(id, -1);
+            }
+        }
+        mGapEnd = mBuffer.length;
+        mModCount++;
+        shrinkIfSparse();
+    }
+
+    private int checkStart(int start) {
+        if (start < 0 || start > size()) {
+            throw new IndexOutOfBoundsException("Interleave from " + start + " in queue of " + size());
+        }
+        return start;
+    }
+
+    /**
+     * Which source each position of an interleave comes from.
+     */
+    private static class InterleaveOrder {
+        private final int[] mRemaining;
+        private final int[] mWeights;
+        private int mSource = 0;
+        private int mTaken = 0;
+
+        InterleaveOrder(int[] lengths, int[] weights) {
+            if (weights.length != lengths.length) {
+                throw new IllegalArgumentException("Need one weight for the queue and one for each source");
+            }
+            for (int weight : weights) {
+                if (weight <= 0) {
+                    throw new IllegalArgumentException("Interleave weights must be positive");
+                }
+            }
+            this.mRemaining = lengths.clone();
+            this.mWeights = weights;
+        }
+
+        /**
+         * Must not be called more times than the sum of the lengths.
+         */
+        int next() {
+            while (mRemaining[mSource] == 0 || mTaken == mWeights[mSource]) {
+                mSource = (mSource + 1) % mWeights.length;
+                mTaken = 0;
+            }
+            mTaken++;
+            mRemaining[mSource]--;
+            return mSource;
+        }
+    }
+
+    public long[] toArray() {
+        long[] list = new long[size()];
+        System.arraycopy(mBuffer, 0, list, 0, mGapStart);
+        System.arraycopy(mBuffer, mGapEnd, list, mGapStart, mBuffer.length - mGapEnd);
+        return list;
+    }
+
+    private void moveGapTo(int position) {
+        if (position < mGapStart) {
+            int count = mGapStart - position;
+            System.arraycopy(mBuffer, position, mBuffer, mGapEnd - count, count);
+            mGapStart -= count;
+            mGapEnd -= count;
+        } else if (position > mGapStart) {
+            int count = position - mGapStart;
+            System.arraycopy(mBuffer, mGapEnd, mBuffer, mGapStart, count);
+            mGapStart += count;
+            mGapEnd += count;
+        }
+    }
+
+    private void ensureGap(int needed) {
+        if (mGapEnd - mGapStart < needed) {
+            // reallocate at 2x requested size so we don't
+            // need to grow and copy the array for every insert
+            resize(Math.max((size() + needed) * 2, MIN_CAPACITY));
+        }
+    }
+
+    private void shrinkIfSparse() {
+        int size = size();
+        if (mBuffer.length > MIN_CAPACITY && size < mBuffer.length / 4) {
+            resize(Math.max(size * 2, MIN_CAPACITY));
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] newBuffer = new long[capacity];
+        int tail = mBuffer.length - mGapEnd;
+        System.arraycopy(mBuffer, 0, newBuffer, 0, mGapStart);
+        System.arraycopy(mBuffer, mGapEnd, newBuffer, capacity - tail, tail);
+        mBuffer = newBuffer;
+        mGapEnd = capacity - tail;
+    }
+}
@@ -42,42 +42,89 @@ public class PlayQueueCursor extends AbstractCursor {
 
     private Cursor mCurrentPlaylistCursor;     // updated in onMove
     private int mSize;                         // size of the queue
-    private long[] playQueue;
-    private long[] mCursorIdxs;
+    private long[] playQueue;                  // copy of the queue, may have room for more than mSize tracks
+    private long mQueueVersion = 0;            // version of the queue which playQueue is a copy of
+    private LongIntHashMap mCursorIdxs;         // track id -> cursor position
     private int mCurPos;
 
     public PlayQueueCursor(MediaPlayback service, ContentResolver contentResolver) {
         this.service = service;
         this.contentResolver = contentResolver;
-        init();
+        updateQueue();
+        queryTracks();
     }
 
-    private void init() {
+    /**
+     * Brings the copy of the queue up to date, by applying the changes since the last update
+     * when they are available, and by copying the whole queue otherwise.
+     *
+     * @return whether all tracks in the queue are already in the cursor
+     */
+    private boolean updateQueue() {
+        QueueChangeLog.Diff diff = service.getQueueChanges(mQueueVersion);
+        mQueueVersion = diff.version;
+        if (diff.changes == null) {
+            playQueue = diff.queue;
+            mSize = playQueue.length;
+            return false;
+        }
+
+        int capacity = mSize;
+        for (QueueChangeLog.Change change : diff.changes) {
+            capacity += change.growth();
+        }
+        if (capacity > playQueue.length) {
+            playQueue = Arrays.copyOf(playQueue, capacity);
+        }
+        boolean known = mCursorIdxs != null;
+        for (QueueChangeLog.Change change : diff.changes) {
+            mSize = change.applyTo(playQueue, mSize);
+            if (known && change.type == QueueChangeLog.INSERT) {
+                for (long id : change.ids) {
+                    if (!mCursorIdxs.containsKey(id)) {
+                        known = false;
+                        break;
+                    }
+                }
+            }
+        }
+        return known;
+    }
+
+    private void refresh() {
+        if (updateQueue()) {
+            onMove(-1, mCurPos); // update the underlying cursor
+        } else {
+            queryTracks();
+        }
+    }
+
+    private void queryTracks() {
         if (mCurrentPlaylistCursor != null) {
             mCurrentPlaylistCursor.close();
             mCurrentPlaylistCursor = null;
         }
-        playQueue = service.getQueue();
-        mSize = playQueue.length;
+        mCursorIdxs = null;
         if (mSize == 0) {
             return;
         }
 
         mCurrentPlaylistCursor = contentResolver.query(
                 MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                COLUMNS, buildPlayQueueWhereClause(playQueue), null, MediaStore.Audio.AudioColumns._ID);
+                COLUMNS, buildPlayQueueWhereClause(playQueue, mSize), null, null);
 
         if (mCurrentPlaylistCursor == null) {
             mSize = 0;
+            mQueueVersion = 0; // fetch the whole queue next time
             return;
         }
 
         int size = mCurrentPlaylistCursor.getCount();
-        mCursorIdxs = new long[size];
+        mCursorIdxs = new LongIntHashMap(size);
         mCurrentPlaylistCursor.moveToFirst();
         int colidx = mCurrentPlaylistCursor.getColumnIndexOrThrow(MediaStore.Audio.AudioColumns._ID);
         for (int i = 0; i < size; i++) {
-            mCursorIdxs[i] = mCurrentPlaylistCursor.getLong(colidx);
+            mCursorIdxs.put(mCurrentPlaylistCursor.getLong(colidx), i);
             mCurrentPlaylistCursor.moveToNext();
         }
         mCurrentPlaylistCursor.moveToFirst();
@@ -87,30 +134,29 @@ public class PlayQueueCursor extends AbstractCursor {
         // earlier to make sure that all the items in there still exist
         // in the database, and remove those that aren't. This way we
         // don't get any blank items in the list.
-        int removed = 0;
-        for (int i = playQueue.length - 1; i >= 0; i--) {
+        long[] missing = new long[mSize];
+        int missingCount = 0;
+        for (int i = 0; i < mSize; i++) {
             long trackid = playQueue[i];
-            int crsridx = Arrays.binarySearch(mCursorIdxs, trackid);
-            if (crsridx < 0) {
+            if (!mCursorIdxs.containsKey(trackid)) {
                 Log.i(TAG, "item no longer exists in db: " + trackid);
-                removed += service.removeTrack(trackid);
+                missing[missingCount++] = trackid;
             }
         }
-        if (removed > 0) {
-            playQueue = service.getQueue();
-            mSize = playQueue.length;
+        if (missingCount > 0 && service.removeTracks(Arrays.copyOf(missing, missingCount)) > 0) {
+            updateQueue();
             if (mSize == 0) {
                 mCursorIdxs = null;
             }
         }
     }
 
-    private String buildPlayQueueWhereClause(long[] playQueue) {
+    private String buildPlayQueueWhereClause(long[] playQueue, int size) {
         StringBuilder where = new StringBuilder();
         where.append(MediaStore.Audio.AudioColumns._ID + " IN (");
-        for (int i = 0; i < playQueue.length; i++) {
+        for (int i = 0; i < size; i++) {
             where.append(playQueue[i]);
-            if (i < playQueue.length - 1) {
+            if (i < size - 1) {
                 where.append(",");
             }
         }
@@ -128,7 +174,7 @@ public class PlayQueueCursor extends AbstractCursor {
         if (oldPosition == newPosition)
             return true;
 
-        if (playQueue == null || mCursorIdxs == null || newPosition >= playQueue.length) {
+        if (playQueue == null || mCursorIdxs == null || newPosition < 0 || newPosition >= mSize) {
             return false;
         }
 
@@ -136,7 +182,7 @@ public class PlayQueueCursor extends AbstractCursor {
         // in queue-order, so we need to figure out where in the cursor we should be.
 
         long newid = playQueue[newPosition];
-        int crsridx = Arrays.binarySearch(mCursorIdxs, newid);
+        int crsridx = mCursorIdxs.get(newid, -1);
         mCurrentPlaylistCursor.moveToPosition(crsridx);
         mCurPos = newPosition;
 
@@ -147,20 +193,27 @@ public class PlayQueueCursor extends AbstractCursor {
         if (service.removeTracks(which, which) == 0) {
             return false; // delete failed
         }
-        int i = which;
-        mSize--;
-        while (i < mSize) {
-            playQueue[i] = playQueue[i + 1];
-            i++;
-        }
-        onMove(-1, mCurPos);
+        refresh();
         return true;
     }
 
     public void moveItem(int from, int to) {
-        service.moveQueueItem(from, to);
-        playQueue = service.getQueue();
-        onMove(-1, mCurPos); // update the underlying cursor
+        moveBlock(from, from, to);
+    }
+
+    /**
+     * Moves the items at position first to last, inclusive, so that the first of them ends up at position to.
+     * The local copy of the queue is then updated with the change, rather than fetched again.
+     */
+    public void moveBlock(int first, int last, int to) {
+        if (first < 0 || last < first || last >= mSize || to < 0) {
+            return;
+        }
+        int length = last - first + 1;
+        if (to > mSize - length) to = mSize - length;
+        if (to == first) return;
+        service.moveQueueBlock(first, last, to);
+        refresh();
     }
 
     @Override
@@ -226,7 +279,7 @@ public class PlayQueueCursor extends AbstractCursor {
 
     @Override
     public boolean requery() {
-        init();
+        refresh();
         return true;
     }
 
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delivers playback events from {@link MediaPlaybackService} to listeners in the same process,
+ * without the marshalling and system round-trip of a broadcast.
+ *
+ * Listeners can be registered before the service is bound, e.g. in onResume(), and are called on the looper
+ * of the thread which registered them. Like with sticky broadcasts, a listener gets the latest state
+ * of each kind of event when it registers.
+ */
+public final class PlaybackEvents {
+
+    static final int PLAY_STATE = 1;
+    static final int META = 2;
+    static final int QUEUE = 4;
+
+    private static class Registration {
+        final PlaybackListener listener;
+        final Handler handler;
+        volatile boolean active = true;
+
+        Registration(PlaybackListener listener, Handler handler) {
+            this.listener = listener;
+            this.handler = handler;
+        }
+    }
+
+    private static final List<Registration> sRegistrations = new ArrayList<>();
+    private static PlaybackSnapshot sLatest = null;
+
+    private PlaybackEvents() { }
+
+    /**
+     * Must be called from a thread with a looper.
+     */
+    public static synchronized void register(PlaybackListener listener) {
+        Registration registration = new Registration(listener, new Handler());
+        sRegistrations.add(registration);
+        if (sLatest != null) {
+            deliver(registration, PLAY_STATE | META | QUEUE, sLatest);
+        }
+    }
+
+    /**
+     * No events are delivered to the listener after this, not even those already posted to its looper.
+     */
+    public static synchronized void unregister(PlaybackListener listener) {
+        for (int i = sRegistrations.size() - 1; i >= 0; i--) {
+            Registration registration = sRegistrations.get(i);
+            if (registration.listener == listener) {
+                registration.active = false;
+                sRegistrations.remove(i);
+            }
+        }
+    }
+
+    static synchronized void dispatch(int events, PlaybackSnapshot state) {
+        sLatest = state;
+        for (Registration registration : sRegistrations) {
+            deliver(registration, events, state);
+        }
+    }
+
+    static synchronized void dispatchPosition(final PlaybackSnapshot state) {
+        for (final Registration registration : sRegistrations) {
+            registration.handler.post(() -> {
+                if (registration.active) {
+                    registration.listener.onPositionChanged(state);
+                }
+            });
+        }
+    }
+
+    /**
+     * Forgets the latest state, when the service goes away.
+     */
+    static synchronized void reset() {
+        sLatest = null;
+    }
+
+    private static void deliver(final Registration registration, final int events, final PlaybackSnapshot state) {
+        registration.handler.post(() -> {
+            if (!registration.active) return;
+            if ((events & QUEUE) != 0) {
+                registration.listener.onQueueChanged(state);
+            }
+            if ((events & META) != 0 && registration.active) {
+                registration.listener.onMetaChanged(state);
+            }
+            if ((events & PLAY_STATE) != 0 && registration.active) {
+                registration.listener.onPlayStateChanged(state);
+            }
+        });
+    }
+}
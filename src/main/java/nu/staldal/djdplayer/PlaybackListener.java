@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+/**
+ * Receives playback events in-process, see {@link PlaybackEvents}. Override the events of interest.
+ */
+public abstract class PlaybackListener {
+
+    /**
+     * Playback has started, paused or stopped.
+     */
+    public void onPlayStateChanged(PlaybackSnapshot state) { }
+
+    /**
+     * The current track, or its metadata, has changed.
+     */
+    public void onMetaChanged(PlaybackSnapshot state) { }
+
+    /**
+     * The play queue has changed. The changes themselves are available from
+     * {@link MediaPlayback#getQueueChanges(long)}.
+     */
+    public void onQueueChanged(PlaybackSnapshot state) { }
+
+    /**
+     * The position in the current track has changed other than by playing, e.g. by seeking or pausing.
+     * Use {@link PlaybackSnapshot#positionAt(long)} to follow it while playing.
+     */
+    public void onPositionChanged(PlaybackSnapshot state) { }
+}
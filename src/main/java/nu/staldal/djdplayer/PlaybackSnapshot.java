@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.io.File;
+
+/**
+ * Immutable snapshot of the playback state, published by the service after each change.
+ * Reading it never blocks, and all fields are consistent with each other.
+ */
+public class PlaybackSnapshot {
+
+    public static final PlaybackSnapshot EMPTY = new PlaybackSnapshot(0, -1, -1, -1, -1, -1, 0,
+            MediaPlayback.REPEAT_NONE, false, -1, -1, 0, 0f, null, -1, null, -1, null, -1, null, null, null);
+
+    /**
+     * Increased for each published snapshot.
+     */
+    public final long version;
+
+    public final long audioId;
+    public final long crossfadeAudioId;
+
+    /**
+     * The next track, if it is prepared ahead and ready to play without delay, otherwise -1.
+     */
+    public final long preparedAudioId;
+
+    public final int queuePosition;
+    public final int crossfadeQueuePosition;
+    public final int queueLength;
+    public final int repeatMode;
+    public final boolean playing;
+
+    /**
+     * Duration of the current track in milliseconds, or -1 if unknown.
+     */
+    public final long duration;
+
+    /**
+     * Position in the current track in milliseconds at positionTime, or -1 if unknown.
+     * Only published when it changes other than by playing, use {@link #positionAt(long)}.
+     */
+    public final long position;
+
+    /**
+     * When position was sampled, from SystemClock.elapsedRealtime().
+     */
+    public final long positionTime;
+
+    /**
+     * How fast position advances, 0 when not playing.
+     */
+    public final float speed;
+
+    public final String artistName;
+    public final long artistId;
+    public final String albumName;
+    public final long albumId;
+    public final String genreName;
+    public final long genreId;
+    public final String mimeType;
+    public final File folder;
+    public final String trackName;
+
+    public PlaybackSnapshot(long version, long audioId, long crossfadeAudioId, long preparedAudioId,
+                            int queuePosition, int crossfadeQueuePosition, int queueLength, int repeatMode,
+                            boolean playing, long duration, long position, long positionTime, float speed,
+                            String artistName, long artistId, String albumName, long albumId,
+                            String genreName, long genreId, String mimeType, File folder, String trackName) {
+        this.version = version;
+        this.audioId = audioId;
+        this.crossfadeAudioId = crossfadeAudioId;
+        this.preparedAudioId = preparedAudioId;
+        this.queuePosition = queuePosition;
+        this.crossfadeQueuePosition = crossfadeQueuePosition;
+        this.queueLength = queueLength;
+        this.repeatMode = repeatMode;
+        this.playing = playing;
+        this.duration = duration;
+        this.position = position;
+        this.positionTime = positionTime;
+        this.speed = speed;
+        this.artistName = artistName;
+        this.artistId = artistId;
+        this.albumName = albumName;
+        this.albumId = albumId;
+        this.genreName = genreName;
+        this.genreId = genreId;
+        this.mimeType = mimeType;
+        this.folder = folder;
+        this.trackName = trackName;
+    }
+
+    /**
+     * @param elapsedRealtime from SystemClock.elapsedRealtime()
+     * @return the position in the current track at that time, extrapolated from the last published position,
+     * or -1 if unknown
+     */
+    public long positionAt(long elapsedRealtime) {
+        if (position < 0) {
+            return -1;
+        }
+        long extrapolated = position + (long) ((elapsedRealtime - positionTime) * speed);
+        return duration >= 0 ? Math.min(extrapolated, duration) : extrapolated;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.util.Arrays;
+
+/**
+ * Which track each player in a pool has prepared, or is preparing, so that a player which already has
+ * a track prepared can be reused for it, and which player to prepare another track on when all are in use.
+ * A player is not ready to play its track until {@link #setReady(int)}, even if it was ready with another one.
+ *
+ * Usefulness is given as a list of wanted tracks, the most useful first. A player with no track is
+ * reused first, then one with a track which is not wanted, then the one with the least useful track.
+ *
+ * Thread safe.
+ */
+public class PlayerPool {
+
+    private static final int EMPTY = Integer.MAX_VALUE;
+    private static final int NOT_WANTED = Integer.MAX_VALUE - 1;
+
+    private final long[] mIds;
+    private final boolean[] mReady;
+
+    public PlayerPool(int size) {
+        mIds = new long[size];
+        mReady = new boolean[size];
+        Arrays.fill(mIds, -1);
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    /**
+     * @return the track of the player, or -1 if none
+     */
+    public synchronized long get(int player) {
+        return mIds[player];
+    }
+
+    /**
+     * Records that the player is preparing a track.
+     *
+     * @param id -1 if the player has no track
+     */
+    public synchronized void set(int player, long id) {
+        mIds[player] = id;
+        mReady[player] = false;
+    }
+
+    /**
+     * Records that the player has prepared its track.
+     */
+    public synchronized void setReady(int player) {
+        mReady[player] = mIds[player] >= 0;
+    }
+
+    public synchronized boolean isReady(int player) {
+        return mReady[player];
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mIds, -1);
+        Arrays.fill(mReady, false);
+    }
+
+    /**
+     * @param preferred the player to return if it has the track, -1 for none
+     * @param exclude a player not to return, -1 for none
+     * @param preparing whether a player which is still preparing the track counts
+     * @return a player which has the track, or -1 if none
+     */
+    public synchronized int find(long id, int preferred, int exclude, boolean preparing) {
+        if (id < 0) {
+            return -1;
+        }
+        for (int i = -1; i < mIds.length; i++) {
+            int player = i < 0 ? preferred : i;
+            if (player >= 0 && player != exclude && mIds[player] == id && (preparing || mReady[player])) {
+                return player;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param wanted the tracks to keep prepared, the most useful first, -1 for none
+     * @param rank the position in wanted of the track to prepare
+     * @param exclude players not to reuse, -1 for none
+     * @return the player with the least useful track, if it is less useful than the track to prepare, otherwise -1
+     */
+    public synchronized int victim(long[] wanted, int rank, int... exclude) {
+        int victim = -1;
+        int victimRank = rank;
+        for (int i = 0; i < mIds.length; i++) {
+            if (contains(exclude, i)) {
+                continue;
+            }
+            int r = rankOf(wanted, i);
+            if (r > victimRank) {
+                victim = i;
+                victimRank = r;
+            }
+        }
+        return victim;
+    }
+
+    private int rankOf(long[] wanted, int player) {
+        long id = mIds[player];
+        if (id < 0) {
+            return EMPTY;
+        }
+        for (int i = 0; i < wanted.length; i++) {
+            if (wanted[i] == id) {
+                // only the first player with a track is useful, another one with the same track is not
+                for (int p = 0; p < player; p++) {
+                    if (mIds[p] == id) return NOT_WANTED;
+                }
+                return i;
+            }
+        }
+        return NOT_WANTED;
+    }
+
+    private static boolean contains(int[] players, int player) {
+        for (int p : players) {
+            if (p == player) return true;
+        }
+        return false;
+    }
+}
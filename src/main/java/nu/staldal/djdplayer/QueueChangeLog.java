@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.util.Arrays;
+
+/**
+ * Version of the play queue, and a bounded ring of the latest changes to it, so that
+ * a consumer which has a copy of the queue can bring it up to date without copying the whole queue.
+ *
+ * Only inserts, range removals and moves are recorded. Any other change, or a change done behind
+ * the back of the log (detected by the modification count of the queue), resets the log,
+ * and consumers then get a full copy.
+ *
+ * Not thread safe.
+ */
+public class QueueChangeLog {
+
+    public static final int INSERT = 1;
+    public static final int REMOVE = 2;
+    public static final int MOVE = 3;
+
+    public static class Change {
+        public final int type;
+        public final int first;
+        public final int last;
+        public final int to;
+        public final long[] ids;
+
+        Change(int type, int first, int last, int to, long[] ids) {
+            this.type = type;
+            this.first = first;
+            this.last = last;
+            this.to = to;
+            this.ids = ids;
+        }
+
+        /**
+         * Applies the change to a copy of the queue, with room for inserts beyond size.
+         *
+         * @return the new size
+         */
+        public int applyTo(long[] queue, int size) {
+            switch (type) {
+                case INSERT:
+                    System.arraycopy(queue, first, queue, first + ids.length, size - first);
+                    System.arraycopy(ids, 0, queue, first, ids.length);
+                    return size + ids.length;
+
+                case REMOVE:
+                    System.arraycopy(queue, last + 1, queue, first, size - last - 1);
+                    return size - (last - first + 1);
+
+                case MOVE: {
+                    int length = last - first + 1;
+                    long[] block = new long[length];
+                    System.arraycopy(queue, first, block, 0, length);
+                    if (first < to) {
+                        System.arraycopy(queue, last + 1, queue, first, to - first);
+                    } else {
+                        System.arraycopy(queue, to, queue, to + length, first - to);
+                    }
+                    System.arraycopy(block, 0, queue, to, length);
+                    return size;
+                }
+
+                default:
+                    throw new IllegalStateException("Unknown change type: " + type);
+            }
+        }
+
+        /**
+         * @return how much the queue grows by this change
+         */
+        public int growth() {
+            return type == INSERT ? ids.length : 0;
+        }
+    }
+
+    /**
+     * Either the changes since the requested version, or a full copy of the queue.
+     */
+    public static class Diff {
+        public final long version;
+        public final Change[] changes;
+        public final long[] queue;
+
+        Diff(long version, Change[] changes, long[] queue) {
+            this.version = version;
+            this.changes = changes;
+            this.queue = queue;
+        }
+    }
+
+    private final Change[] mRing;
+    private final int mMaxIds;
+    private int mCount = 0;  // number of changes in the ring, the latest at mVersion
+    private int mIds = 0;    // number of ids stored in the ring
+    private long mVersion;
+    private int mModCount = -1;
+
+    public QueueChangeLog(int maxChanges, int maxIds) {
+        this.mRing = new Change[maxChanges];
+        this.mMaxIds = maxIds;
+        // Versions from an earlier instance are then older than any available change
+        this.mVersion = System.currentTimeMillis() << 16;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public void inserted(PlayQueue queue, int modCountBefore, int position, long[] ids) {
+        add(queue, modCountBefore, new Change(INSERT, position, position, position, ids.clone()));
+    }
+
+    public void removed(PlayQueue queue, int modCountBefore, int first, int last) {
+        add(queue, modCountBefore, new Change(REMOVE, first, last, first, null));
+    }
+
+    /**
+     * A move of the items at first to last, inclusive, so that the first of them ends up at to.
+     */
+    public void moved(PlayQueue queue, int modCountBefore, int first, int last, int to) {
+        add(queue, modCountBefore, new Change(MOVE, first, last, to, null));
+    }
+
+    /**
+     * Inserts at the given positions, in ascending order and counted after the insert, done in one
+     * modification of the queue as by {@link PlayQueue#insertAt(int[], long[])}.
+     * Recorded as an insert of each run of adjacent positions, from the first one.
+     */
+    public void insertedAt(PlayQueue queue, int modCountBefore, int[] positions, long[] ids) {
+        if (mModCount != modCountBefore || ids.length > mMaxIds || runs(positions) > mRing.length) {
+            reset(queue);
+            return;
+        }
+        int first = 0;
+        while (first < positions.length) {
+            int last = first;
+            while (last + 1 < positions.length && positions[last + 1] == positions[last] + 1) last++;
+            append(new Change(INSERT, positions[first], positions[first], positions[first],
+                    Arrays.copyOfRange(ids, first, last + 1)));
+            first = last + 1;
+        }
+        mModCount = queue.getModCount();
+    }
+
+    /**
+     * Removal of the items at the given positions, in ascending order, done in one modification of the queue.
+     * Recorded as a removal of each run of adjacent positions, from the last one, so that the runs before it
+     * keep their positions.
+     */
+    public void removed(PlayQueue queue, int modCountBefore, int[] positions) {
+        if (mModCount != modCountBefore || runs(positions) > mRing.length) {
+            reset(queue);
+            return;
+        }
+        int last = positions.length - 1;
+        while (last >= 0) {
+            int first = last;
+            while (first > 0 && positions[first - 1] == positions[first] - 1) first--;
+            append(new Change(REMOVE, positions[first], positions[last], positions[first], null));
+            last = first - 1;
+        }
+        mModCount = queue.getModCount();
+    }
+
+    private static int runs(int[] positions) {
+        int runs = 0;
+        for (int i = 0; i < positions.length; i++) {
+            if (i == 0 || positions[i] != positions[i - 1] + 1) runs++;
+        }
+        return runs;
+    }
+
+    private void add(PlayQueue queue, int modCountBefore, Change change) {
+        if (mModCount != modCountBefore || change.growth() > mMaxIds) {
+            reset(queue);
+            return;
+        }
+        append(change);
+        mModCount = queue.getModCount();
+    }
+
+    private void append(Change change) {
+        while (mCount == mRing.length || (mCount > 0 && mIds + change.growth() > mMaxIds)) {
+            mIds -= slot(mVersion - mCount + 1).growth();
+            slotSet(mVersion - mCount + 1, null);
+            mCount--;
+        }
+        mVersion++;
+        mCount++;
+        slotSet(mVersion, change);
+        mIds += change.growth();
+    }
+
+    /**
+     * Starts over after a change which is not recorded.
+     */
+    public void reset(PlayQueue queue) {
+        mVersion++;
+        for (int i = 0; i < mRing.length; i++) {
+            mRing[i] = null;
+        }
+        mCount = 0;
+        mIds = 0;
+        mModCount = queue.getModCount();
+    }
+
+    /**
+     * @return the changes since the given version, or a full copy of the queue if they are not available
+     */
+    public Diff diff(long sinceVersion, PlayQueue queue) {
+        if (mModCount != queue.getModCount()) {
+            reset(queue);
+        }
+        if (sinceVersion <= mVersion && sinceVersion >= mVersion - mCount) {
+            Change[] changes = new Change[(int) (mVersion - sinceVersion)];
+            for (int i = 0; i < changes.length; i++) {
+                changes[i] = slot(sinceVersion + 1 + i);
+            }
+            return new Diff(mVersion, changes, null);
+        } else {
+            return new Diff(mVersion, null, queue.toArray());
+        }
+    }
+
+    private Change slot(long version) {
+        return mRing[(int) (version % mRing.length)];
+    }
+
+    private void slotSet(long version, Change change) {
+        mRing[(int) (version % mRing.length)] = change;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded undo/redo history of play queue edits.
+ *
+ * Each entry holds the edit and its inverse as {@link QueueJournal} records, so a shuffle is
+ * stored as its seed and a removal as the positions and ids removed. Only edits which replace
+ * the whole queue need a copy of it. The oldest entries are dropped when there are too many,
+ * or when they take too much memory.
+ *
+ * Not thread safe.
+ */
+public class QueueHistory {
+
+    public static class Entry {
+        public final ByteBuffer edit;
+        public final ByteBuffer inverse;
+        public final int positionBefore;
+        public final int positionAfter;
+
+        public Entry(ByteBuffer edit, ByteBuffer inverse, int positionBefore, int positionAfter) {
+            this.edit = rewound(edit);
+            this.inverse = rewound(inverse);
+            this.positionBefore = positionBefore;
+            this.positionAfter = positionAfter;
+        }
+
+        int size() {
+            return edit.capacity() + inverse.capacity();
+        }
+
+        private static ByteBuffer rewound(ByteBuffer record) {
+            ByteBuffer buffer = record.duplicate();
+            buffer.position(0);
+            return buffer;
+        }
+    }
+
+    private final int mMaxEntries;
+    private final int mMaxBytes;
+    private final ArrayDeque<Entry> mUndo = new ArrayDeque<>();
+    private final ArrayDeque<Entry> mRedo = new ArrayDeque<>();
+    private int mBytes = 0;
+
+    public QueueHistory(int maxEntries, int maxBytes) {
+        this.mMaxEntries = maxEntries;
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Adds an edit which has just been done, and forgets the edits which could be redone.
+     */
+    public void add(Entry entry) {
+        while (!mRedo.isEmpty()) {
+            mBytes -= mRedo.pop().size();
+        }
+        if (entry.size() > mMaxBytes) {
+            // Older entries cannot be undone without this one
+            clear();
+            return;
+        }
+        mUndo.push(entry);
+        mBytes += entry.size();
+        while (mUndo.size() > mMaxEntries || mBytes > mMaxBytes) {
+            mBytes -= mUndo.removeLast().size();
+        }
+    }
+
+    public boolean canUndo() {
+        return !mUndo.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !mRedo.isEmpty();
+    }
+
+    /**
+     * @return the entry to undo by applying its inverse, or null if none
+     */
+    public Entry undo() {
+        Entry entry = mUndo.poll();
+        if (entry != null) {
+            mRedo.push(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @return the entry to redo by applying its edit, or null if none
+     */
+    public Entry redo() {
+        Entry entry = mRedo.poll();
+        if (entry != null) {
+            mUndo.push(entry);
+        }
+        return entry;
+    }
+
+    public void clear() {
+        mUndo.clear();
+        mRedo.clear();
+        mBytes = 0;
+    }
+}
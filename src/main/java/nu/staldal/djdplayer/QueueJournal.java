@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of play queue edits, applied on top of the snapshot in {@link QueueStore}.
+ *
+ * Each edit is stored as a small record, so the cost of persisting an edit is proportional to
+ * the edit rather than to the queue size. The journal is tied to a snapshot generation, and
+ * is reset each time a new snapshot is written.
+ *
+ * A record is a varint length, the payload (opcode and operands) and a CRC32 of the payload.
+ * Replay stops at the first incomplete or damaged record, which is what a crash in the middle
+ * of an append leaves behind.
+ */
+public class QueueJournal {
+
+    private static final int MAGIC = 0x444a444a; // "DJDJ"
+    private static final int HEADER_SIZE = 4 + 8;
+
+    private static final byte OP_INSERT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_MOVE = 3;
+    private static final byte OP_SHUFFLE = 4;
+    private static final byte OP_REMOVE_IDS = 6;
+    private static final byte OP_UNIQUEIFY = 7;
+    private static final byte OP_MOVE_BLOCK = 8;
+    private static final byte OP_MOVES = 9;
+    private static final byte OP_UNSHUFFLE = 10;
+    private static final byte OP_INSERT_AT = 11;
+    private static final byte OP_REPLACE = 12;
+    private static final byte OP_INTERLEAVE_FROM = 13;
+    private static final byte OP_UNINTERLEAVE = 14;
+
+    private final File mFile;
+
+    public QueueJournal(File file) {
+        this.mFile = file;
+    }
+
+    public long size() {
+        return mFile.length();
+    }
+
+    /**
+     * Empties the journal and ties it to a new snapshot generation.
+     */
+    public void reset(long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putLong(generation);
+        header.flip();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.force(false);
+        } finally {
+            file.close();
+        }
+    }
+
+    public void append(ByteBuffer record) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            FileChannel channel = out.getChannel();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Applies the journalled edits to a queue restored from the snapshot with the given generation.
+     *
+     * @return the number of edits applied, or -1 if the journal does not belong to the snapshot
+     */
+    public int replay(PlayQueue queue, long generation) throws IOException {
+        if (!mFile.exists()) {
+            return -1;
+        }
+        ByteBuffer buffer;
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getLong() != generation) {
+            return -1;
+        }
+
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (buffer.hasRemaining()) {
+            ByteBuffer payload;
+            try {
+                int length = (int) QueueStore.getVarLong(buffer);
+                if (length <= 0 || length + 4 > buffer.remaining()) {
+                    break;
+                }
+                payload = buffer.slice();
+                payload.limit(length);
+                buffer.position(buffer.position() + length);
+                crc.reset();
+                crc.update(toArray(payload));
+                if ((int) crc.getValue() != buffer.getInt()) {
+                    break;
+                }
+            } catch (IOException | BufferUnderflowException e) {
+                break;
+            }
+            try {
+                apply(queue, payload, null);
+            } catch (IOException e) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Applies a single record, as returned by one of the record methods, without checking its CRC.
+     */
+    public static void applyRecord(PlayQueue queue, ByteBuffer record) throws IOException {
+        applyRecord(queue, record, null);
+    }
+
+    /**
+     * Applies a single record, and records the change in a change log, if it is an insert, a removal or a move.
+     * Other changes are detected by the change log through the modification count of the queue.
+     */
+    public static void applyRecord(PlayQueue queue, ByteBuffer record, QueueChangeLog changes) throws IOException {
+        ByteBuffer payload = record.duplicate();
+        try {
+            int length = (int) QueueStore.getVarLong(payload);
+            payload.limit(payload.position() + length);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed journal record", e);
+        }
+        apply(queue, payload.slice(), changes);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static void apply(PlayQueue queue, ByteBuffer payload, QueueChangeLog changes) throws IOException {
+        int modCount = queue.getModCount();
+        try {
+            byte op = payload.get();
+            switch (op) {
+                case OP_INSERT: {
+                    int position = getInt(payload);
+                    long[] ids = getIds(payload);
+                    position = queue.insert(position, ids);
+                    if (changes != null) changes.inserted(queue, modCount, position, ids);
+                    break;
+                }
+                case OP_REMOVE: {
+                    int first = getInt(payload);
+                    int last = getInt(payload);
+                    checkRange(queue, first, last);
+                    queue.remove(first, last);
+                    if (changes != null) changes.removed(queue, modCount, first, last);
+                    break;
+                }
+                case OP_MOVE: {
+                    int from = getInt(payload);
+                    int to = getInt(payload);
+                    checkRange(queue, from, from);
+                    checkRange(queue, to, to);
+                    queue.move(from, to);
+                    if (changes != null) changes.moved(queue, modCount, from, from, to);
+                    break;
+                }
+                case OP_MOVE_BLOCK: {
+                    int first = getInt(payload);
+                    int last = getInt(payload);
+                    int to = getInt(payload);
+                    checkRange(queue, first, last);
+                    checkRange(queue, to, to + last - first);
+                    queue.moveBlock(first, last, to);
+                    if (changes != null) changes.moved(queue, modCount, first, last, to);
+                    break;
+                }
+                case OP_MOVES: {
+                    // Moves do not change the size, so all of them can be checked before applying any
+                    int count = getInt(payload);
+                    if (count > payload.remaining()) {
+                        throw new IOException("Invalid journal move count: " + count);
+                    }
+                    int[] moves = new int[count * 2];
+                    for (int i = 0; i < moves.length; i++) {
+                        moves[i] = getInt(payload);
+                        checkRange(queue, moves[i], moves[i]);
+                    }
+                    for (int i = 0; i < moves.length; i += 2) {
+                        queue.move(moves[i], moves[i + 1]);
+                    }
+                    break;
+                }
+                case OP_SHUFFLE: {
+                    long seed = QueueStore.unzigzag(QueueStore.getVarLong(payload));
+                    int keepPosition = getInt(payload) - 1;
+                    queue.shuffle(new Random(seed), keepPosition);
+                    break;
+                }
+                case OP_UNSHUFFLE: {
+                    long seed = QueueStore.unzigzag(QueueStore.getVarLong(payload));
+                    int keepPosition = getInt(payload) - 1;
+                    queue.unshuffle(new Random(seed), keepPosition);
+                    break;
+                }
+                case OP_INSERT_AT: {
+                    int[] positions = new int[getInt(payload)];
+                    if (positions.length > payload.remaining()) {
+                        throw new IOException("Invalid journal position count: " + positions.length);
+                    }
+                    for (int i = 0; i < positions.length; i++) {
+                        positions[i] = getInt(payload);
+                        if ((i > 0 && positions[i] <= positions[i - 1]) || positions[i] > queue.size() + i) {
+                            throw new IOException("Journal does not match queue: " + positions[i] + " of " + queue.size());
+                        }
+                    }
+                    long[] ids = getIds(payload);
+                    if (ids.length != positions.length) {
+                        throw new IOException("Malformed journal record");
+                    }
+                    queue.insertAt(positions, ids);
+                    if (changes != null) changes.insertedAt(queue, modCount, positions, ids);
+                    break;
+                }
+                case OP_REPLACE:
+                    queue.setAll(getIds(payload));
+                    break;
+                case OP_INTERLEAVE_FROM: {
+                    int start = getStart(queue, payload);
+                    int[] weights = getWeights(payload);
+                    long[][] sources = new long[weights.length - 1][];
+                    for (int i = 0; i < sources.length; i++) {
+                        sources[i] = getIds(payload);
+                    }
+                    queue.interleave(start, sources, weights);
+                    break;
+                }
+                case OP_UNINTERLEAVE: {
+                    int start = getStart(queue, payload);
+                    int[] weights = getWeights(payload);
+                    int[] lengths = new int[weights.length - 1];
+                    long total = 0;
+                    for (int i = 0; i < lengths.length; i++) {
+                        lengths[i] = getInt(payload);
+                        total += lengths[i];
+                    }
+                    if (total > queue.size() - start) {
+                        throw new IOException("Journal does not match queue: " + total + " of " + queue.size());
+                    }
+                    queue.uninterleave(start, lengths, weights);
+                    break;
+                }
+                case OP_REMOVE_IDS: {
+                    LongHashSet ids = new LongHashSet();
+                    ids.addAll(getIds(payload));
+                    int[] positions = changes != null ? positionsOf(queue, ids) : null;
+                    queue.removeAll(ids);
+                    if (changes != null) changes.removed(queue, modCount, positions);
+                    break;
+                }
+                case OP_UNIQUEIFY: {
+                    int[] keep = new int[]{getInt(payload) - 1, getInt(payload) - 1};
+                    for (int position : keep) {
+                        if (position >= queue.size()) {
+                            throw new IOException("Journal does not match queue: " + position + " of " + queue.size());
+                        }
+                    }
+                    int[] positions = changes != null ? queue.duplicatePositions(keep) : null;
+                    queue.uniqueify(keep);
+                    if (changes != null) changes.removed(queue, modCount, positions);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown journal operation: " + op);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Malformed journal record", e);
+        }
+    }
+
+    private static int[] positionsOf(PlayQueue queue, LongHashSet ids) {
+        int[] positions = new int[queue.size()];
+        int count = 0;
+        for (int i = 0; i < queue.size(); i++) {
+            if (ids.contains(queue.get(i))) positions[count++] = i;
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+    private static void checkRange(PlayQueue queue, int first, int last) throws IOException {
+        if (first < 0 || last < first || last >= queue.size()) {
+            throw new IOException("Journal does not match queue: " + first + "-" + last + " of " + queue.size());
+        }
+    }
+
+    private static int getStart(PlayQueue queue, ByteBuffer payload) throws IOException {
+        int start = getInt(payload);
+        if (start > queue.size()) {
+            throw new IOException("Journal does not match queue: " + start + " of " + queue.size());
+        }
+        return start;
+    }
+
+    private static int[] getWeights(ByteBuffer payload) throws IOException {
+        int count = getInt(payload);
+        if (count < 2 || count > payload.remaining()) {
+            throw new IOException("Invalid journal weight count: " + count);
+        }
+        int[] weights = new int[count];
+        for (int i = 0; i < count; i++) {
+            weights[i] = getInt(payload);
+            if (weights[i] == 0) {
+                throw new IOException("Invalid interleave weight");
+            }
+        }
+        return weights;
+    }
+
+    public static ByteBuffer insertRecord(int position, long[] ids) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 5 + 5 + ids.length * 10);
+        payload.put(OP_INSERT);
+        putInt(payload, position);
+        putIds(payload, ids);
+        return frame(payload);
+    }
+
+    public static ByteBuffer removeRecord(int first, int last) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 5 + 5);
+        payload.put(OP_REMOVE);
+        putInt(payload, first);
+        putInt(payload, last);
+        return frame(payload);
+    }
+
+    public static ByteBuffer moveRecord(int from, int to) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 5 + 5);
+        payload.put(OP_MOVE);
+        putInt(payload, from);
+        putInt(payload, to);
+        return frame(payload);
+    }
+
+    public static ByteBuffer moveBlockRecord(int first, int last, int to) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 5 + 5 + 5);
+        payload.put(OP_MOVE_BLOCK);
+        putInt(payload, first);
+        putInt(payload, last);
+        putInt(payload, to);
+        return frame(payload);
+    }
+
+    public static ByteBuffer movesRecord(int[] from, int[] to) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 5 + from.length * 10);
+        payload.put(OP_MOVES);
+        putInt(payload, from.length);
+        for (int i = 0; i < from.length; i++) {
+            putInt(payload, from[i]);
+            putInt(payload, to[i]);
+        }
+        return frame(payload);
+    }
+
+    public static ByteBuffer shuffleRecord(long seed, int keepPosition) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 10 + 5);
+        payload.put(OP_SHUFFLE);
+        QueueStore.putVarLong(payload, QueueStore.zigzag(seed));
+        putInt(payload, keepPosition + 1); // keepPosition may be -1
+        return frame(payload);
+    }
+
+    public static ByteBuffer unshuffleRecord(long seed, int keepPosition) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 10 + 5);
+        payload.put(OP_UNSHUFFLE);
+        QueueStore.putVarLong(payload, QueueStore.zigzag(seed));
+        putInt(payload, keepPosition + 1); // keepPosition may be -1
+        return frame(payload);
+    }
+
+    /**
+     * @param positions ascending positions, in the queue after the insertion
+     */
+    public static ByteBuffer insertAtRecord(int[] positions, long[] ids) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 5 + positions.length * 5 + 5 + ids.length * 10);
+        payload.put(OP_INSERT_AT);
+        putInt(payload, positions.length);
+        for (int position : positions) {
+            putInt(payload, position);
+        }
+        putIds(payload, ids);
+        return frame(payload);
+    }
+
+    public static ByteBuffer replaceRecord(long[] ids) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 5 + ids.length * 10);
+        payload.put(OP_REPLACE);
+        putIds(payload, ids);
+        return frame(payload);
+    }
+
+    /**
+     * @param weights one more than sources
+     */
+    public static ByteBuffer interleaveFromRecord(int start, long[][] sources, int[] weights) {
+        int ids = 0;
+        for (long[] source : sources) {
+            ids += source.length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(1 + 5 + 5 + weights.length * 5 + sources.length * 5 + ids * 10);
+        payload.put(OP_INTERLEAVE_FROM);
+        putInt(payload, start);
+        putWeights(payload, weights);
+        for (long[] source : sources) {
+            putIds(payload, source);
+        }
+        return frame(payload);
+    }
+
+    public static ByteBuffer uninterleaveRecord(int start, int[] sourceLengths, int[] weights) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 5 + 5 + weights.length * 5 + sourceLengths.length * 5);
+        payload.put(OP_UNINTERLEAVE);
+        putInt(payload, start);
+        putWeights(payload, weights);
+        for (int length : sourceLengths) {
+            putInt(payload, length);
+        }
+        return frame(payload);
+    }
+
+    public static ByteBuffer removeIdsRecord(long[] ids) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 5 + ids.length * 10);
+        payload.put(OP_REMOVE_IDS);
+        putIds(payload, ids);
+        return frame(payload);
+    }
+
+    public static ByteBuffer uniqueifyRecord(int keepPosition, int keepPosition2) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 5 + 5);
+        payload.put(OP_UNIQUEIFY);
+        putInt(payload, keepPosition + 1); // positions may be -1
+        putInt(payload, keepPosition2 + 1);
+        return frame(payload);
+    }
+
+    private static ByteBuffer frame(ByteBuffer payload) {
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, payload.limit());
+        ByteBuffer record = ByteBuffer.allocate(5 + payload.limit() + 4);
+        QueueStore.putVarLong(record, payload.limit());
+        record.put(payload);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static void putInt(ByteBuffer buffer, int n) {
+        QueueStore.putVarLong(buffer, n);
+    }
+
+    private static void putWeights(ByteBuffer buffer, int[] weights) {
+        putInt(buffer, weights.length);
+        for (int weight : weights) {
+            putInt(buffer, weight);
+        }
+    }
+
+    private static int getInt(ByteBuffer buffer) throws IOException {
+        long n = QueueStore.getVarLong(buffer);
+        if (n < 0 || n > Integer.MAX_VALUE) {
+            throw new IOException("Invalid journal operand: " + n);
+        }
+        return (int) n;
+    }
+
+    private static void putIds(ByteBuffer buffer, long[] ids) {
+        putInt(buffer, ids.length);
+        QueueStore.putIds(buffer, ids);
+    }
+
+    private static long[] getIds(ByteBuffer buffer) throws IOException {
+        return QueueStore.getIds(buffer, getInt(buffer));
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Named snapshots of the play queue, one file per snapshot in a directory of their own.
+ *
+ * A file consists of a header (magic, format version, card id, play position, seek position, track count)
+ * followed by the track ids, encoded in the same way as in {@link QueueStore}.
+ */
+public class QueueSnapshots {
+
+    private static final int MAGIC = 0x444a4453; // "DJDS"
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 4 + 8 + 4;
+    private static final String SUFFIX = ".queue";
+
+    public static class Snapshot {
+        public final String name;
+        public final long[] ids;
+        public final int cardId;
+        public final int position;
+        public final long seek;
+
+        public Snapshot(String name, long[] ids, int cardId, int position, long seek) {
+            this.name = name;
+            this.ids = ids;
+            this.cardId = cardId;
+            this.position = position;
+            this.seek = seek;
+        }
+    }
+
+    private final File mDir;
+
+    public QueueSnapshots(File dir) {
+        this.mDir = dir;
+    }
+
+    /**
+     * Saves a snapshot, replacing any existing snapshot with the same name.
+     */
+    public void save(Snapshot snapshot) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create " + mDir);
+        }
+        QueueStore.writeAtomically(fileFor(snapshot.name), encode(snapshot));
+    }
+
+    /**
+     * @return the snapshot, or null if there is no snapshot with that name
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    public Snapshot load(String name) throws IOException {
+        File file = fileFor(name);
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return decode(name, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the names of the snapshots, in alphabetical order
+     */
+    public List<String> list() {
+        List<String> names = new ArrayList<>();
+        String[] files = mDir.list();
+        if (files != null) {
+            for (String file : files) {
+                if (file.endsWith(SUFFIX)) {
+                    try {
+                        names.add(URLDecoder.decode(file.substring(0, file.length() - SUFFIX.length()), "UTF-8"));
+                    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+        return names;
+    }
+
+    /**
+     * @return whether there was a snapshot with that name
+     */
+    public boolean delete(String name) {
+        return fileFor(name).delete();
+    }
+
+    private File fileFor(String name) {
+        try {
+            // Encoded, so that any name is a valid file name
+            return new File(mDir, URLEncoder.encode(name, "UTF-8") + SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static ByteBuffer encode(Snapshot snapshot) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + snapshot.ids.length * 10);
+        buffer.putInt(MAGIC);
+        buffer.put(FORMAT_VERSION);
+        buffer.putInt(snapshot.cardId);
+        buffer.putInt(snapshot.position);
+        buffer.putLong(snapshot.seek);
+        buffer.putInt(snapshot.ids.length);
+        QueueStore.putIds(buffer, snapshot.ids);
+        buffer.flip();
+        return buffer;
+    }
+
+    static Snapshot decode(String name, ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a queue snapshot file");
+            }
+            byte version = buffer.get();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported queue snapshot version: " + version);
+            }
+            int cardId = buffer.getInt();
+            int position = buffer.getInt();
+            long seek = buffer.getLong();
+            long[] ids = QueueStore.getIds(buffer, buffer.getInt());
+            return new Snapshot(name, ids, cardId, position, seek);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated queue snapshot file", e);
+        }
+    }
+}
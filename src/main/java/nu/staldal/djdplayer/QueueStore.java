@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores the play queue in a compact binary file of its own, so that saving the play position
+ * does not have to rewrite the queue.
+ *
+ * The file consists of a header (magic, format version, card id, generation, track count) followed by
+ * the track ids, each one stored as the zigzag varint encoded difference from the previous id.
+ * Consecutive tracks from the same album or folder tend to have close ids, so most entries
+ * fit in one or two bytes.
+ *
+ * The generation is increased for each snapshot, and ties the snapshot to its {@link QueueJournal}.
+ */
+public class QueueStore {
+
+    private static final int MAGIC = 0x444a4451; // "DJDQ"
+    private static final byte FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 8 + 4;
+
+    public static class Snapshot {
+        public final long[] ids;
+        public final int cardId;
+        public final long generation;
+
+        public Snapshot(long[] ids, int cardId, long generation) {
+            this.ids = ids;
+            this.cardId = cardId;
+            this.generation = generation;
+        }
+    }
+
+    private final File mFile;
+
+    public QueueStore(File file) {
+        this.mFile = file;
+    }
+
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    public void save(long[] ids, int cardId, long generation) throws IOException {
+        writeAtomically(mFile, encode(ids, cardId, generation));
+    }
+
+    /**
+     * Writes the buffer to a temporary file, and then atomically replaces the file with it.
+     */
+    static void writeAtomically(File file, ByteBuffer buffer) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tempFile, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to rename " + tempFile + " to " + file);
+        }
+    }
+
+    /**
+     * @return the stored queue, or null if there is no stored queue
+     * @throws IOException if the stored queue cannot be read or is corrupt
+     */
+    public Snapshot load() throws IOException {
+        if (!mFile.exists()) {
+            return null;
+        }
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void delete() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    public static ByteBuffer encode(long[] ids, int cardId, long generation) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + ids.length * 10);
+        buffer.putInt(MAGIC);
+        buffer.put(FORMAT_VERSION);
+        buffer.putInt(cardId);
+        buffer.putLong(generation);
+        buffer.putInt(ids.length);
+        putIds(buffer, ids);
+        buffer.flip();
+        return buffer;
+    }
+
+    public static Snapshot decode(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a queue file");
+            }
+            byte version = buffer.get();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported queue file version: " + version);
+            }
+            int cardId = buffer.getInt();
+            long generation = buffer.getLong();
+            long[] ids = getIds(buffer, buffer.getInt());
+            return new Snapshot(ids, cardId, generation);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated queue file", e);
+        }
+    }
+
+    /**
+     * Puts the ids, each one as the zigzag varint encoded difference from the previous one, without their count.
+     */
+    static void putIds(ByteBuffer buffer, long[] ids) {
+        long previous = 0;
+        for (long id : ids) {
+            putVarLong(buffer, zigzag(id - previous));
+            previous = id;
+        }
+    }
+
+    /**
+     * Reverses {@link #putIds(ByteBuffer, long[])}.
+     */
+    static long[] getIds(ByteBuffer buffer, int count) throws IOException {
+        // Each id takes at least one byte
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IOException("Invalid id count: " + count);
+        }
+        long[] ids = new long[count];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous += unzigzag(getVarLong(buffer));
+            ids[i] = previous;
+        }
+        return ids;
+    }
+
+    static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    static void putVarLong(ByteBuffer buffer, long n) {
+        while ((n & ~0x7fL) != 0) {
+            buffer.put((byte) ((n & 0x7f) | 0x80));
+            n >>>= 7;
+        }
+        buffer.put((byte) n);
+    }
+
+    static long getVarLong(ByteBuffer buffer) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
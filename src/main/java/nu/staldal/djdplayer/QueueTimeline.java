@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Durations of the tracks in the play queue, aligned with the queue positions, for prefix sums
+ * in logarithmic time.
+ *
+ * The durations are kept in a treap keyed by position (the position of a node is the number of nodes
+ * before it), where each node also holds the size and the total duration of its subtree. Inserting,
+ * removing and moving k durations takes O(k + log n) expected time, without rebuilding anything after
+ * the edited position, and queries take O(log n).
+ *
+ * The nodes are stored in parallel arrays, with node 0 as the empty tree.
+ *
+ * Not thread safe.
+ */
+public class QueueTimeline {
+
+    private static final int NIL = 0;
+
+    private final Random mRandom = new Random();
+
+    private int[] mLeft = new int[17];
+    private int[] mRight = new int[17];
+    private int[] mPriority = new int[17];
+    private int[] mCount = new int[17];
+    private int[] mDuration = new int[17];
+    private long[] mSum = new long[17];
+    private int mUsed = 1; // nodes in use or in the free list, including NIL
+    private int mFree = NIL; // free nodes, linked through mLeft
+
+    private int mRoot = NIL;
+
+    // The two trees returned by split()
+    private int mSplitLeft;
+    private int mSplitRight;
+
+    public int size() {
+        return mCount[mRoot];
+    }
+
+    public int get(int position) {
+        return mDuration[find(position)];
+    }
+
+    /**
+     * Replaces all durations. Unknown durations should be given as 0.
+     */
+    public void setAll(int[] durations) {
+        mUsed = 1;
+        mFree = NIL;
+        mRoot = build(durations);
+    }
+
+    public void set(int position, int duration) {
+        long delta = duration - mDuration[find(position)];
+        int node = mRoot;
+        int k = position;
+        while (true) {
+            mSum[node] += delta;
+            int leftCount = mCount[mLeft[node]];
+            if (k < leftCount) {
+                node = mLeft[node];
+            } else if (k == leftCount) {
+                mDuration[node] = duration;
+                return;
+            } else {
+                k -= leftCount + 1;
+                node = mRight[node];
+            }
+        }
+    }
+
+    public void insert(int position, int[] durations) {
+        int inserted = build(durations);
+        split(mRoot, position);
+        int right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, inserted), right);
+    }
+
+    /**
+     * Removes the durations at position first to last, inclusive.
+     */
+    public void remove(int first, int last) {
+        int removed = cut(first, last);
+        free(removed);
+    }
+
+    public void move(int from, int to) {
+        moveBlock(from, from, to);
+    }
+
+    /**
+     * Same as {@link PlayQueue#moveBlock(int, int, int)}.
+     */
+    public void moveBlock(int first, int last, int to) {
+        if (first == to) return;
+        int block = cut(first, last);
+        split(mRoot, to);
+        int right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, block), right);
+    }
+
+    /**
+     * @return the sum of the durations before position, in milliseconds
+     */
+    public long prefixSum(int position) {
+        long sum = 0;
+        int node = mRoot;
+        int k = position;
+        while (node != NIL && k > 0) {
+            int leftCount = mCount[mLeft[node]];
+            if (k <= leftCount) {
+                node = mLeft[node];
+            } else {
+                sum += mSum[mLeft[node]] + mDuration[node];
+                k -= leftCount + 1;
+                node = mRight[node];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the sum of the durations at position first to last - 1, in milliseconds
+     */
+    public long sum(int first, int last) {
+        return last > first ? prefixSum(last) - prefixSum(first) : 0;
+    }
+
+    public long total() {
+        return mSum[mRoot];
+    }
+
+    private int find(int position) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("Position " + position + " of " + size());
+        }
+        int node = mRoot;
+        int k = position;
+        while (true) {
+            int leftCount = mCount[mLeft[node]];
+            if (k < leftCount) {
+                node = mLeft[node];
+            } else if (k == leftCount) {
+                return node;
+            } else {
+                k -= leftCount + 1;
+                node = mRight[node];
+            }
+        }
+    }
+
+    /**
+     * Takes the durations at position first to last, inclusive, out of the tree.
+     *
+     * @return the tree with them
+     */
+    private int cut(int first, int last) {
+        split(mRoot, first);
+        int left = mSplitLeft;
+        split(mSplitRight, last - first + 1);
+        int middle = mSplitLeft;
+        mRoot = merge(left, mSplitRight);
+        return middle;
+    }
+
+    /**
+     * Splits a tree into the first k nodes and the rest, in mSplitLeft and mSplitRight.
+     */
+    private void split(int node, int k) {
+        if (node == NIL) {
+            mSplitLeft = NIL;
+            mSplitRight = NIL;
+        } else if (mCount[mLeft[node]] < k) {
+            split(mRight[node], k - mCount[mLeft[node]] - 1);
+            mRight[node] = mSplitLeft;
+            update(node);
+            mSplitLeft = node;
+        } else {
+            split(mLeft[node], k);
+            mLeft[node] = mSplitRight;
+            update(node);
+            mSplitRight = node;
+        }
+    }
+
+    /**
+     * @return a tree with the nodes of a followed by those of b
+     */
+    private int merge(int a, int b) {
+        if (a == NIL) return b;
+        if (b == NIL) return a;
+        if (mPriority[a] > mPriority[b]) {
+            mRight[a] = merge(mRight[a], b);
+            update(a);
+            return a;
+        } else {
+            mLeft[b] = merge(a, mLeft[b]);
+            update(b);
+            return b;
+        }
+    }
+
+    /**
+     * Builds a tree in linear time, by keeping the rightmost path on a stack.
+     */
+    private int build(int[] durations) {
+        int[] stack = new int[durations.length];
+        int top = 0;
+        for (int duration : durations) {
+            int node = allocate(duration);
+            int last = NIL;
+            while (top > 0 && mPriority[stack[top - 1]] < mPriority[node]) {
+                last = stack[--top];
+                update(last);
+            }
+            mLeft[node] = last;
+            if (top > 0) {
+                mRight[stack[top - 1]] = node;
+            }
+            stack[top++] = node;
+        }
+        while (top > 1) {
+            update(stack[--top]);
+        }
+        if (top == 0) {
+            return NIL;
+        }
+        update(stack[0]);
+        return stack[0];
+    }
+
+    private void update(int node) {
+        mCount[node] = mCount[mLeft[node]] + mCount[mRight[node]] + 1;
+        mSum[node] = mSum[mLeft[node]] + mSum[mRight[node]] + mDuration[node];
+    }
+
+    private int allocate(int duration) {
+        int node;
+        if (mFree != NIL) {
+            node = mFree;
+            mFree = mLeft[node];
+        } else {
+            if (mUsed == mLeft.length) {
+                grow();
+            }
+            node = mUsed++;
+        }
+        mLeft[node] = NIL;
+        mRight[node] = NIL;
+        mPriority[node] = mRandom.nextInt();
+        mDuration[node] = duration;
+        mCount[node] = 1;
+        mSum[node] = duration;
+        return node;
+    }
+
+    private void free(int node) {
+        if (node == NIL) return;
+        free(mRight[node]);
+        free(mLeft[node]);
+        mLeft[node] = mFree;
+        mFree = node;
+    }
+
+    private void grow() {
+        int capacity = mLeft.length * 2;
+        mLeft = Arrays.copyOf(mLeft, capacity);
+        mRight = Arrays.copyOf(mRight, capacity);
+        mPriority = Arrays.copyOf(mPriority, capacity);
+        mCount = Arrays.copyOf(mCount, capacity);
+        mDuration = Arrays.copyOf(mDuration, capacity);
+        mSum = Arrays.copyOf(mSum, capacity);
+    }
+}
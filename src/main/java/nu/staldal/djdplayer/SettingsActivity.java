@@ -27,7 +27,11 @@ public class SettingsActivity extends Activity {
     public static final String SHOW_PLAYLISTS_TAB = "show_playlists_tab";
     public static final String MUSIC_FOLDER = "music_folder";
     public static final String FADE_SECONDS = "fade_seconds";
+    public static final String FADE_CURVE = "fade_curve";
     public static final String CROSS_FADE = "cross_fade";
+    public static final String PREPARE_AHEAD_SECONDS = "prepare_ahead_seconds";
+    public static final String GAPLESS = "gapless";
+    public static final String PLAYERS = "players";
 
     public static final String PLAYQUEUE = "queue";
     public static final String CARDID = "cardid";
@@ -42,6 +46,11 @@ public class SettingsActivity extends Activity {
     public static final String PLAY_NOW = "PLAY_NOW";
     public static final String QUEUE = "QUEUE";
 
+    // FADE_CURVE values
+    public static final String LINEAR = "LINEAR";
+    public static final String EQUAL_POWER = "EQUAL_POWER";
+    public static final String LOG = "LOG";
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
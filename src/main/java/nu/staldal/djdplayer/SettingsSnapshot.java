@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Immutable snapshot of the settings which are read on hot paths, such as every fade step in the
+ * playback service, every query in the provider and every click on a song.
+ *
+ * Shared by the whole process, and rebuilt only when one of the settings changes.
+ */
+public final class SettingsSnapshot {
+
+    private static final String LOGTAG = "SettingsSnapshot";
+
+    public final String clickOnSong;
+    public final String musicFolder;
+    public final int fadeSeconds;
+    public final int fadeCurve; // VolumeFader curve
+    public final boolean crossFade;
+    public final int prepareAheadSeconds;
+    public final boolean gapless;
+    public final int players;
+    public final int numWeeks;
+
+    private static volatile SettingsSnapshot sCurrent = null;
+
+    // SharedPreferences only keeps a weak reference to its listeners
+    private static SharedPreferences.OnSharedPreferenceChangeListener sListener;
+
+    private SettingsSnapshot(SharedPreferences settings, SharedPreferences state) {
+        clickOnSong = settings.getString(SettingsActivity.CLICK_ON_SONG, SettingsActivity.PLAY_NEXT);
+        musicFolder = settings.getString(SettingsActivity.MUSIC_FOLDER,
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC).getAbsolutePath());
+        int fade = 0;
+        try {
+            fade = Integer.parseInt(settings.getString(SettingsActivity.FADE_SECONDS, "0"));
+        } catch (NumberFormatException e) {
+            Log.w(LOGTAG, "Invalid fade setting", e);
+        }
+        fadeSeconds = fade;
+        switch (settings.getString(SettingsActivity.FADE_CURVE, SettingsActivity.LINEAR)) {
+            case SettingsActivity.EQUAL_POWER:
+                fadeCurve = VolumeFader.EQUAL_POWER;
+                break;
+            case SettingsActivity.LOG:
+                fadeCurve = VolumeFader.LOG;
+                break;
+            default:
+                fadeCurve = VolumeFader.LINEAR;
+        }
+        crossFade = settings.getBoolean(SettingsActivity.CROSS_FADE, false);
+        int prepareAhead = 30;
+        try {
+            prepareAhead = Integer.parseInt(settings.getString(SettingsActivity.PREPARE_AHEAD_SECONDS, "30"));
+        } catch (NumberFormatException e) {
+            Log.w(LOGTAG, "Invalid prepare ahead setting", e);
+        }
+        prepareAheadSeconds = prepareAhead;
+        gapless = settings.getBoolean(SettingsActivity.GAPLESS, true);
+        int numPlayers = 3;
+        try {
+            numPlayers = Integer.parseInt(settings.getString(SettingsActivity.PLAYERS, "3"));
+        } catch (NumberFormatException e) {
+            Log.w(LOGTAG, "Invalid players setting", e);
+        }
+        players = Math.max(2, numPlayers);
+        numWeeks = state.getInt(SettingsActivity.NUMWEEKS, 2);
+    }
+
+    public static SettingsSnapshot get(Context context) {
+        SettingsSnapshot current = sCurrent;
+        return current != null ? current : init(context.getApplicationContext());
+    }
+
+    private static synchronized SettingsSnapshot init(Context context) {
+        if (sCurrent == null) {
+            final SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+            final SharedPreferences state = context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE);
+            sListener = (prefs, key) -> {
+                // The key is null when the preferences have been cleared
+                if (key == null || isSnapshotted(key)) {
+                    sCurrent = new SettingsSnapshot(settings, state);
+                }
+            };
+            settings.registerOnSharedPreferenceChangeListener(sListener);
+            state.registerOnSharedPreferenceChangeListener(sListener);
+            sCurrent = new SettingsSnapshot(settings, state);
+        }
+        return sCurrent;
+    }
+
+    private static boolean isSnapshotted(String key) {
+        switch (key) {
+            case SettingsActivity.CLICK_ON_SONG:
+            case SettingsActivity.MUSIC_FOLDER:
+            case SettingsActivity.FADE_SECONDS:
+            case SettingsActivity.FADE_CURVE:
+            case SettingsActivity.CROSS_FADE:
+            case SettingsActivity.PREPARE_AHEAD_SECONDS:
+            case SettingsActivity.GAPLESS:
+            case SettingsActivity.PLAYERS:
+            case SettingsActivity.NUMWEEKS:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+}
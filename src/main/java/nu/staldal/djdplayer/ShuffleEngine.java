@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Shuffles track lists, optionally keeping tracks from the same group (artist or genre) apart.
+ */
+public final class ShuffleEngine {
+
+    /**
+     * How far ahead to look for a track which does not break the spacing.
+     */
+    private static final int SEARCH_LIMIT = 256;
+
+    private ShuffleEngine() { }
+
+    /**
+     * Fisher-Yates shuffle, leaving the item at keepPosition (if not -1) in place.
+     * All permutations of the other items are equally likely.
+     */
+    public static void shuffle(long[] ids, int keepPosition, Random random) {
+        shuffle(ids, null, keepPosition, random);
+    }
+
+    /**
+     * Shuffles the tracks, and then tries to make sure that two tracks in the same group are
+     * at least spacing + 1 positions apart. This is not always possible (e.g. when most tracks
+     * are in the same group), in that case the spacing is kept where it can be.
+     *
+     * Runs in O(n log n) time, the repair pass is linear since it only looks a bounded
+     * distance ahead or back.
+     *
+     * @param ids          the tracks, shuffled in place
+     * @param groups       the group of each track, negative for unknown, permuted along with ids
+     * @param spacing      the number of tracks between two tracks in the same group
+     * @param keepPosition a position to leave in place, or -1
+     */
+    public static void shuffleSpaced(long[] ids, long[] groups, int spacing, int keepPosition, Random random) {
+        shuffle(ids, groups, keepPosition, random);
+        if (spacing <= 0) return;
+
+        int[] group = denseGroups(groups);
+        int[] lastPosition = new int[ids.length];
+        Arrays.fill(lastPosition, Integer.MIN_VALUE / 2);
+
+        for (int i = 0; i < ids.length; i++) {
+            if (i != keepPosition && conflicts(group, group[i], i, keepPosition, lastPosition, spacing)) {
+                int j = findLater(group, i, keepPosition, lastPosition, spacing);
+                if (j < 0) {
+                    // typically near the end, when the remaining tracks are in the same few groups
+                    j = findEarlier(group, i, keepPosition, spacing);
+                }
+                if (j >= 0) {
+                    swap(ids, i, j);
+                    swap(groups, i, j);
+                    int tmp = group[i];
+                    group[i] = group[j];
+                    group[j] = tmp;
+                }
+            }
+            if (group[i] >= 0) {
+                lastPosition[group[i]] = i;
+            }
+        }
+    }
+
+    private static void shuffle(long[] ids, long[] groups, int keepPosition, Random random) {
+        boolean keep = keepPosition >= 0 && keepPosition < ids.length;
+        int count = keep ? ids.length - 1 : ids.length;
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            // skip over the kept position
+            int a = keep && i >= keepPosition ? i + 1 : i;
+            int b = keep && j >= keepPosition ? j + 1 : j;
+            swap(ids, a, b);
+            if (groups != null) swap(groups, a, b);
+        }
+    }
+
+    /**
+     * Finds a later track which can be placed at position i.
+     */
+    private static int findLater(int[] group, int i, int keepPosition, int[] lastPosition, int spacing) {
+        int end = Math.min(group.length, i + 1 + SEARCH_LIMIT);
+        for (int j = i + 1; j < end; j++) {
+            if (j != keepPosition && !conflicts(group, group[j], i, keepPosition, lastPosition, spacing)) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds an already placed track which can change place with the track at position i.
+     */
+    private static int findEarlier(int[] group, int i, int keepPosition, int spacing) {
+        int end = Math.max(0, i - SEARCH_LIMIT);
+        for (int k = i - spacing - 1; k >= end; k--) {
+            if (k != keepPosition && group[k] != group[i]
+                    && !inWindow(group, group[i], k - spacing, k + spacing, k, i, keepPosition)
+                    && !inWindow(group, group[k], i - spacing, i + spacing, k, i, keepPosition)) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether any of the positions from..to (except k) which are placed
+     * (before position placed, or kept) is in the given group
+     */
+    private static boolean inWindow(int[] group, int g, int from, int to, int k, int placed, int keepPosition) {
+        if (g < 0) return false;
+        for (int p = Math.max(0, from); p <= to && p < group.length; p++) {
+            if (p != k && (p < placed || p == keepPosition) && group[p] == g) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether a track in group g at position i is too close to a track in the same group,
+     * either an earlier one or the kept one
+     */
+    private static boolean conflicts(int[] group, int g, int i, int keepPosition, int[] lastPosition, int spacing) {
+        if (g < 0) return false;
+        if (i - lastPosition[g] <= spacing) return true;
+        return keepPosition > i && keepPosition - i <= spacing && group[keepPosition] == g;
+    }
+
+    /**
+     * Maps the groups to 0..(number of groups - 1), unknown groups to -1.
+     */
+    private static int[] denseGroups(long[] groups) {
+        long[] sorted = groups.clone();
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        int[] dense = new int[groups.length];
+        for (int i = 0; i < groups.length; i++) {
+            dense[i] = groups[i] < 0 ? -1 : Arrays.binarySearch(sorted, 0, unique, groups[i]);
+        }
+        return dense;
+    }
+
+    private static void swap(long[] array, int i, int j) {
+        long tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
+}
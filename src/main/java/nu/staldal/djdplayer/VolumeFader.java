@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Volume envelopes of a number of players. The volume during a ramp is a function of the elapsed time,
+ * rather than accumulated in steps, so a late tick makes the volume change later, but not slower.
+ *
+ * Not thread safe.
+ */
+public class VolumeFader {
+
+    public static final int LINEAR = 0;
+    public static final int EQUAL_POWER = 1;
+    public static final int LOG = 2;
+
+    // The lowest gain of a logarithmic ramp, -60 dB, where it jumps to silence
+    private static final double LOG_FLOOR = 0.001;
+
+    private final float[] mFrom;
+    private final float[] mTo;
+    private final long[] mStart;
+    private final long[] mDuration;
+    private final int[] mCurve;
+    private final Runnable[] mOnDone;
+    private final boolean[] mRamping;
+
+    public VolumeFader(int players) {
+        mFrom = new float[players];
+        mTo = new float[players];
+        mStart = new long[players];
+        mDuration = new long[players];
+        mCurve = new int[players];
+        mOnDone = new Runnable[players];
+        mRamping = new boolean[players];
+        for (int i = 0; i < players; i++) {
+            mTo[i] = 1.0f;
+        }
+    }
+
+    /**
+     * @return the volume of the player at the given time
+     */
+    public float volume(int player, long now) {
+        if (!mRamping[player]) {
+            return mTo[player];
+        }
+        long elapsed = now - mStart[player];
+        if (elapsed >= mDuration[player]) {
+            return mTo[player];
+        }
+        double progress = elapsed <= 0 ? 0 : (double) elapsed / mDuration[player];
+        return (float) (mFrom[player] + (mTo[player] - mFrom[player]) * shape(mCurve[player], progress,
+                mTo[player] > mFrom[player]));
+    }
+
+    /**
+     * Sets the volume right away, cancelling any ramp.
+     */
+    public void set(int player, float volume) {
+        mRamping[player] = false;
+        mOnDone[player] = null;
+        mTo[player] = volume;
+    }
+
+    /**
+     * Starts a ramp from the current volume, replacing any ramp in progress.
+     *
+     * @param onDone run by {@link #advance(long)} when the target is reached, or null
+     */
+    public void rampTo(int player, float target, long durationMillis, int curve, long now, Runnable onDone) {
+        float from = volume(player, now);
+        mFrom[player] = from;
+        mTo[player] = target;
+        mStart[player] = now;
+        mDuration[player] = Math.max(0, durationMillis);
+        mCurve[player] = curve;
+        mOnDone[player] = onDone;
+        mRamping[player] = true;
+    }
+
+    /**
+     * Stops any ramp, holding the volume reached so far.
+     */
+    public void cancel(int player, long now) {
+        if (mRamping[player]) {
+            set(player, volume(player, now));
+        }
+    }
+
+    /**
+     * @return the volume the player is ramping to, or is at
+     */
+    public float target(int player) {
+        return mTo[player];
+    }
+
+    public boolean isRamping(int player) {
+        return mRamping[player];
+    }
+
+    public boolean isRamping() {
+        for (boolean ramping : mRamping) {
+            if (ramping) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ends the ramps which have reached their target, and then runs their onDone.
+     *
+     * @return bit mask of the players which have been ramping since the last call,
+     * and whose volume should thus be applied
+     */
+    public int advance(long now) {
+        int changed = 0;
+        List<Runnable> done = null;
+        for (int i = 0; i < mRamping.length; i++) {
+            if (mRamping[i]) {
+                changed |= 1 << i;
+                if (now - mStart[i] >= mDuration[i]) {
+                    if (mOnDone[i] != null) {
+                        if (done == null) done = new ArrayList<>(mRamping.length);
+                        done.add(mOnDone[i]);
+                    }
+                    set(i, mTo[i]);
+                }
+            }
+        }
+        if (done != null) {
+            for (Runnable runnable : done) {
+                runnable.run();
+            }
+            for (int i = 0; i < mRamping.length; i++) {
+                if (mRamping[i]) changed |= 1 << i;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return how far along a ramp, from 0 to 1, the volume is at the given progress
+     */
+    static double shape(int curve, double progress, boolean rising) {
+        switch (curve) {
+            case EQUAL_POWER:
+                // the gains of two opposite ramps add up to constant power
+                return rising ? Math.sin(progress * Math.PI / 2) : 1 - Math.cos(progress * Math.PI / 2);
+
+            case LOG:
+                // linear in decibels
+                return rising ? logGain(progress) : 1 - logGain(1 - progress);
+
+            case LINEAR:
+            default:
+                return progress;
+        }
+    }
+
+    private static double logGain(double progress) {
+        return (Math.pow(LOG_FLOOR, 1 - progress) - LOG_FLOOR) / (1 - LOG_FLOOR);
+    }
+}
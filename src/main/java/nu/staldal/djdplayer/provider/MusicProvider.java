@@ -20,12 +20,10 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.net.Uri;
-import android.os.Environment;
-import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.util.Log;
 import nu.staldal.djdplayer.R;
-import nu.staldal.djdplayer.SettingsActivity;
+import nu.staldal.djdplayer.SettingsSnapshot;
 
 import java.io.File;
 import java.io.FileFilter;
@@ -165,8 +163,7 @@ public class MusicProvider extends ContentProvider {
             return fetchMusic();
         } else if (id == MusicContract.Playlist.RECENTLY_ADDED_PLAYLIST) {
             // do a query for all songs added in the last X weeks
-            Context context = getContext();
-            int weeks = context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE).getInt(SettingsActivity.NUMWEEKS, 2);
+            int weeks = SettingsSnapshot.get(getContext()).numWeeks;
             int seconds = weeks * (3600 * 24 * 7);
             return getContext().getContentResolver().query(
                     MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
@@ -240,8 +237,7 @@ public class MusicProvider extends ContentProvider {
     }
 
     private static File fetchRoot(Context context) {
-        return new File(PreferenceManager.getDefaultSharedPreferences(context).getString(SettingsActivity.MUSIC_FOLDER,
-                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC).getAbsolutePath()));
+        return new File(SettingsSnapshot.get(context).musicFolder);
     }
 
     private void processFolder(MatrixCursor cursor, int[] counter, File start, File root) {
@@ -20,6 +20,7 @@ import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.view.ContextMenu;
@@ -93,20 +94,8 @@ public class ArtistFragment extends MetadataCategoryFragment {
     }
 
     @Override
-    protected long[] fetchSongList(long id) {
-        Cursor cursor = MusicUtils.query(getActivity(),
-                MusicContract.Artist.getMembersUri(id),
-                new String[] { MediaStore.Audio.AudioColumns._ID },
-                null,
-                null,
-                null);
-
-        if (cursor != null) {
-            long [] list = MusicUtils.getSongListForCursor(cursor);
-            cursor.close();
-            return list;
-        }
-        return MusicUtils.sEmptyList;
+    protected Uri getMembersUri(long id) {
+        return MusicContract.Artist.getMembersUri(id);
     }
 
     @Override
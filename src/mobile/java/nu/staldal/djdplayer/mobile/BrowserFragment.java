@@ -22,7 +22,9 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.widget.CursorAdapter;
-import nu.staldal.djdplayer.MediaPlaybackService;
+import nu.staldal.djdplayer.PlaybackEvents;
+import nu.staldal.djdplayer.PlaybackListener;
+import nu.staldal.djdplayer.PlaybackSnapshot;
 
 public abstract class BrowserFragment extends ListFragment implements LoaderManager.LoaderCallbacks<Cursor> {
 
@@ -57,21 +59,23 @@ public abstract class BrowserFragment extends ListFragment implements LoaderMana
     public void onResume() {
         super.onResume();
 
-        IntentFilter f = new IntentFilter();
-        f.addAction(MediaPlaybackService.META_CHANGED);
-        f.addAction(MediaPlaybackService.QUEUE_CHANGED);
-        getActivity().registerReceiver(statusListener, f);
+        PlaybackEvents.register(statusListener);
     }
 
     @Override
     public void onPause() {
-        getActivity().unregisterReceiver(statusListener);
+        PlaybackEvents.unregister(statusListener);
         super.onPause();
     }
 
-    private final BroadcastReceiver statusListener = new BroadcastReceiver() {
+    private final PlaybackListener statusListener = new PlaybackListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onMetaChanged(PlaybackSnapshot state) {
+            getLoaderManager().restartLoader(0, null, BrowserFragment.this);
+        }
+
+        @Override
+        public void onQueueChanged(PlaybackSnapshot state) {
             getLoaderManager().restartLoader(0, null, BrowserFragment.this);
         }
     };
@@ -173,22 +173,22 @@ public class FolderFragment extends CategoryFragment {
     public boolean onContextItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.folder_play_all_now:
-                MusicUtils.playAll(getActivity(), fetchSongList(mCurrentFolder));
+                MusicUtils.playAll(MusicContract.Folder.getMembersUri(mCurrentFolder), false);
                 return true;
 
             case R.id.folder_play_all_next:
-                MusicUtils.queueNext(getActivity(), fetchSongList(mCurrentFolder));
+                MusicUtils.queueNext(getActivity(), MusicContract.Folder.getMembersUri(mCurrentFolder), false);
                 return true;
 
             case R.id.folder_queue_all:
-                MusicUtils.queue(getActivity(), fetchSongList(mCurrentFolder));
+                MusicUtils.queue(MusicContract.Folder.getMembersUri(mCurrentFolder), false);
                 return true;
 
             case R.id.folder_interleave_all:
                 Intent intent = item.getIntent();
                 int currentCount = intent.getIntExtra(CURRENT_COUNT, 0);
                 int newCount = intent.getIntExtra(NEW_COUNT, 0);
-                MusicUtils.interleave(getActivity(), fetchSongList(mCurrentFolder), currentCount, newCount);
+                MusicUtils.interleave(MusicContract.Folder.getMembersUri(mCurrentFolder), false, currentCount, newCount);
                 return true;
 
             case R.id.folder_new_playlist:
@@ -18,11 +18,8 @@
 package nu.staldal.djdplayer.mobile;
 
 import android.app.Activity;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.media.AudioManager;
 import android.media.audiofx.AudioEffect;
@@ -37,6 +34,9 @@ import android.widget.Toast;
 import nu.staldal.djdplayer.MediaPlayback;
 import nu.staldal.djdplayer.MediaPlaybackService;
 import nu.staldal.djdplayer.MusicUtils;
+import nu.staldal.djdplayer.PlaybackEvents;
+import nu.staldal.djdplayer.PlaybackListener;
+import nu.staldal.djdplayer.PlaybackSnapshot;
 import nu.staldal.djdplayer.R;
 import nu.staldal.djdplayer.SettingsActivity;
 
@@ -84,10 +84,7 @@ public class MediaPlaybackActivity extends Activity implements ServiceConnection
     protected void onStart() {
         super.onStart();
 
-        IntentFilter f = new IntentFilter();
-        f.addAction(MediaPlaybackService.META_CHANGED);
-        f.addAction(MediaPlaybackService.QUEUE_CHANGED);
-        registerReceiver(mStatusListener, new IntentFilter(f));
+        PlaybackEvents.register(mStatusListener);
     }
 
     public void onServiceConnected(ComponentName name, IBinder binder) {
@@ -288,7 +285,7 @@ public class MediaPlaybackActivity extends Activity implements ServiceConnection
 
     @Override
     protected void onStop() {
-        unregisterReceiver(mStatusListener);
+        PlaybackEvents.unregister(mStatusListener);
 
         super.onStop();
     }
@@ -301,9 +298,14 @@ public class MediaPlaybackActivity extends Activity implements ServiceConnection
         super.onDestroy();
     }
 
-    private final BroadcastReceiver mStatusListener = new BroadcastReceiver() {
+    private final PlaybackListener mStatusListener = new PlaybackListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onMetaChanged(PlaybackSnapshot state) {
+            updateTrackInfo();
+        }
+
+        @Override
+        public void onQueueChanged(PlaybackSnapshot state) {
             updateTrackInfo();
         }
     };
@@ -20,6 +20,7 @@ package nu.staldal.djdplayer.mobile;
 import android.app.AlertDialog;
 import android.content.Intent;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
@@ -45,7 +46,7 @@ public abstract class MetadataCategoryFragment extends CategoryFragment {
 
     protected abstract int getNameColumnIndex(Cursor cursor);
 
-    protected abstract long[] fetchSongList(long id);
+    protected abstract Uri getMembersUri(long id);
 
     protected abstract String fetchCategoryName(Cursor cursor);
 
@@ -118,30 +119,31 @@ public abstract class MetadataCategoryFragment extends CategoryFragment {
     }
 
     protected void playAllNow() {
-        long[] songs = fetchSongList(mCurrentId);
-        if (shuffleSongs()) MusicUtils.shuffleArray(songs);
-        MusicUtils.playAll(getActivity(), songs);
+        MusicUtils.playAll(getMembersUri(mCurrentId), shuffleSongs());
     }
 
     protected void playAllNext() {
-        long[] songs = fetchSongList(mCurrentId);
-        if (shuffleSongs()) MusicUtils.shuffleArray(songs);
-        MusicUtils.queueNext(getActivity(), songs);
+        MusicUtils.queueNext(getActivity(), getMembersUri(mCurrentId), shuffleSongs());
     }
 
     protected void queueAll() {
-        long[] songs = fetchSongList(mCurrentId);
-        if (shuffleSongs()) MusicUtils.shuffleArray(songs);
-        MusicUtils.queue(getActivity(), songs);
+        MusicUtils.queue(getMembersUri(mCurrentId), shuffleSongs());
     }
 
     protected void interleaveAll(MenuItem item) {
         Intent intent = item.getIntent();
         int currentCount = intent.getIntExtra(CURRENT_COUNT, 0);
         int newCount = intent.getIntExtra(NEW_COUNT, 0);
-        long[] songs = fetchSongList(mCurrentId);
-        if (shuffleSongs()) MusicUtils.shuffleArray(songs);
-        MusicUtils.interleave(getActivity(), songs, currentCount, newCount);
+        MusicUtils.interleave(getMembersUri(mCurrentId), shuffleSongs(), currentCount, newCount);
+    }
+
+    private long[] fetchSongList(long id) {
+        return MusicUtils.getSongListForCursorAndClose(MusicUtils.query(getActivity(),
+                getMembersUri(id),
+                new String[] { MediaStore.Audio.AudioColumns._ID },
+                null,
+                null,
+                null));
     }
 
     protected void newPlaylist() {
@@ -17,14 +17,9 @@ package nu.staldal.djdplayer.mobile;
 
 import android.app.AlertDialog;
 import android.app.ListFragment;
-import android.content.BroadcastReceiver;
 import android.content.ContentUris;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.database.Cursor;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -41,11 +36,14 @@ import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 import nu.staldal.djdplayer.FragmentServiceConnection;
 import nu.staldal.djdplayer.MediaPlayback;
-import nu.staldal.djdplayer.MediaPlaybackService;
 import nu.staldal.djdplayer.MusicUtils;
 import nu.staldal.djdplayer.PlayQueueCursor;
+import nu.staldal.djdplayer.PlaybackEvents;
+import nu.staldal.djdplayer.PlaybackListener;
+import nu.staldal.djdplayer.PlaybackSnapshot;
 import nu.staldal.djdplayer.R;
 import nu.staldal.djdplayer.SettingsActivity;
+import nu.staldal.djdplayer.SettingsSnapshot;
 import nu.staldal.ui.TouchInterceptor;
 
 public class PlayQueueFragment extends ListFragment
@@ -102,10 +100,7 @@ public class PlayQueueFragment extends ListFragment
     public void onStart() {
         super.onStart();
 
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(MediaPlaybackService.META_CHANGED);
-        filter.addAction(MediaPlaybackService.QUEUE_CHANGED);
-        getActivity().registerReceiver(mNowPlayingListener, filter);
+        PlaybackEvents.register(mNowPlayingListener);
     }
 
     @Override
@@ -140,7 +135,14 @@ public class PlayQueueFragment extends ListFragment
                         if (secs == 0) {
                             ((TextView) view).setText("");
                         } else {
-                            ((TextView) view).setText(MusicUtils.formatDuration(PlayQueueFragment.this.getActivity(), secs));
+                            String duration = MusicUtils.formatDuration(PlayQueueFragment.this.getActivity(), secs);
+                            long timeUntil = service != null ? service.getTimeUntil(cursor.getPosition()) : -1;
+                            if (timeUntil >= 0) {
+                                ((TextView) view).setText(getString(R.string.duration_and_starts_in, duration,
+                                        MusicUtils.formatDuration(PlayQueueFragment.this.getActivity(), timeUntil)));
+                            } else {
+                                ((TextView) view).setText(duration);
+                            }
                         }
                         return true;
 
@@ -187,8 +189,7 @@ public class PlayQueueFragment extends ListFragment
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         if (service != null) {
-            String clickOnSong = PreferenceManager.getDefaultSharedPreferences(getActivity()).getString(
-                    SettingsActivity.CLICK_ON_SONG, SettingsActivity.PLAY_NEXT);
+            String clickOnSong = SettingsSnapshot.get(getActivity()).clickOnSong;
             if (clickOnSong.equals(SettingsActivity.PLAY_NOW)) {
                 service.setQueuePosition(position);
             } else {
@@ -202,7 +203,7 @@ public class PlayQueueFragment extends ListFragment
     @Override
     public void onStop() {
         super.onStop();
-        getActivity().unregisterReceiver(mNowPlayingListener);
+        PlaybackEvents.unregister(mNowPlayingListener);
         listScrolled = false;
     }
 
@@ -234,31 +235,41 @@ public class PlayQueueFragment extends ListFragment
         return ret;
     }
 
-    private final BroadcastReceiver mNowPlayingListener = new BroadcastReceiver() {
+    private final PlaybackListener mNowPlayingListener = new PlaybackListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            // The service could disappear while the broadcast was in flight,
+        public void onQueueChanged(PlaybackSnapshot state) {
+            // The service could disappear while the event was in flight,
             // so check to see if it's still valid
             if (service == null) {
                 return;
             }
 
-            if (intent.getAction().equals(MediaPlaybackService.QUEUE_CHANGED)) {
-                if (deletedOneRow) {
-                    // This is the notification for a single row that was
-                    // deleted previously, which is already reflected in the UI.
-                    deletedOneRow = false;
-                    return;
-                }
-                playQueueCursor.requery();
-                listAdapter.notifyDataSetChanged();
+            if (deletedOneRow) {
+                // This is the notification for a single row that was
+                // deleted previously, which is already reflected in the UI.
+                deletedOneRow = false;
+                return;
             }
+            playQueueCursor.requery();
+            listAdapter.notifyDataSetChanged();
+            showNowPlaying(state);
+        }
 
-            getListView().invalidateViews();
-            if (!listScrolled && !queueZoomed) getListView().setSelection(service.getQueuePosition() + 1);
+        @Override
+        public void onMetaChanged(PlaybackSnapshot state) {
+            if (service == null) {
+                return;
+            }
+
+            showNowPlaying(state);
         }
     };
 
+    private void showNowPlaying(PlaybackSnapshot state) {
+        getListView().invalidateViews();
+        if (!listScrolled && !queueZoomed) getListView().setSelection(state.queuePosition + 1);
+    }
+
     @Override
     public void onCreateContextMenu(ContextMenu menu, View view, ContextMenu.ContextMenuInfo menuInfoIn) {
         if (menuInfoIn == null) return;
@@ -16,10 +16,6 @@
 package nu.staldal.djdplayer.mobile;
 
 import android.app.Fragment;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -33,8 +29,10 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 import nu.staldal.djdplayer.FragmentServiceConnection;
 import nu.staldal.djdplayer.MediaPlayback;
-import nu.staldal.djdplayer.MediaPlaybackService;
 import nu.staldal.djdplayer.MusicUtils;
+import nu.staldal.djdplayer.PlaybackEvents;
+import nu.staldal.djdplayer.PlaybackListener;
+import nu.staldal.djdplayer.PlaybackSnapshot;
 import nu.staldal.djdplayer.R;
 import nu.staldal.ui.RepeatingImageButton;
 
@@ -102,7 +100,7 @@ public class PlayerFooterFragment extends Fragment implements FragmentServiceCon
 
         if (service.getAudioId() != -1) {
             setPauseButtonImage();
-            totalTime.setText(MusicUtils.formatDuration(getActivity(), service.duration()));
+            totalTime.setText(MusicUtils.formatDuration(getActivity(), service.getState().duration));
         }
     }
 
@@ -118,17 +116,14 @@ public class PlayerFooterFragment extends Fragment implements FragmentServiceCon
     public void onResume() {
         super.onResume();
 
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(MediaPlaybackService.META_CHANGED);
-        filter.addAction(MediaPlaybackService.PLAYSTATE_CHANGED);
-        getActivity().registerReceiver(mStatusListener, filter);
+        PlaybackEvents.register(mStatusListener);
 
         setPauseButtonImage();        
     }
 
     @Override
     public void onPause() {
-        getActivity().unregisterReceiver(mStatusListener);
+        PlaybackEvents.unregister(mStatusListener);
 
         super.onPause();
     }
@@ -146,20 +141,26 @@ public class PlayerFooterFragment extends Fragment implements FragmentServiceCon
         service = null;
     }
 
-    private final BroadcastReceiver mStatusListener = new BroadcastReceiver() {
+    private final PlaybackListener mStatusListener = new PlaybackListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onMetaChanged(PlaybackSnapshot state) {
             if (service == null) return;
-            switch (intent.getAction()) {
-                case MediaPlaybackService.META_CHANGED:
-                    totalTime.setText(MusicUtils.formatDuration(getActivity(), service.duration()));
-                    setPauseButtonImage();
-                    queueNextRefresh(1);
-                    break;
-                case MediaPlaybackService.PLAYSTATE_CHANGED:
-                    setPauseButtonImage();
-                    break;
-            }
+            totalTime.setText(MusicUtils.formatDuration(getActivity(), state.duration));
+            setPauseButtonImage();
+            queueNextRefresh(1);
+        }
+
+        @Override
+        public void onPlayStateChanged(PlaybackSnapshot state) {
+            if (service == null) return;
+            setPauseButtonImage();
+        }
+
+        @Override
+        public void onPositionChanged(PlaybackSnapshot state) {
+            if (service == null) return;
+            totalTime.setText(MusicUtils.formatDuration(getActivity(), state.duration));
+            queueNextRefresh(1);
         }
     };
 
@@ -290,13 +291,15 @@ public class PlayerFooterFragment extends Fragment implements FragmentServiceCon
     private long refreshNow() {
         if (service == null) return 500;
 
-        long pos = posOverride < 0 ? service.position() : posOverride;
+        // Extrapolated from the last position published by the service, which is not disturbed
+        PlaybackSnapshot state = service.getState();
+        long pos = posOverride < 0 ? state.positionAt(SystemClock.elapsedRealtime()) : posOverride;
         long remaining = 1000 - (pos % 1000);
-        long duration = service.duration();
+        long duration = state.duration;
         if ((pos >= 0) && (duration > 0)) {
             currentTime.setText(MusicUtils.formatDuration(getActivity(), pos));
 
-            if (service.isPlaying()) {
+            if (state.playing) {
                 currentTime.setVisibility(View.VISIBLE);
             } else {
                 // blink the counter
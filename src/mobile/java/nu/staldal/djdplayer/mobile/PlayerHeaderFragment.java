@@ -17,11 +17,8 @@ package nu.staldal.djdplayer.mobile;
 
 import android.app.AlertDialog;
 import android.app.Fragment;
-import android.content.BroadcastReceiver;
 import android.content.ContentUris;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.view.ContextMenu;
@@ -34,8 +31,10 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 import nu.staldal.djdplayer.FragmentServiceConnection;
 import nu.staldal.djdplayer.MediaPlayback;
-import nu.staldal.djdplayer.MediaPlaybackService;
 import nu.staldal.djdplayer.MusicUtils;
+import nu.staldal.djdplayer.PlaybackEvents;
+import nu.staldal.djdplayer.PlaybackListener;
+import nu.staldal.djdplayer.PlaybackSnapshot;
 import nu.staldal.djdplayer.R;
 import nu.staldal.djdplayer.provider.MusicContract;
 
@@ -83,15 +82,12 @@ public class PlayerHeaderFragment extends Fragment implements FragmentServiceCon
     public void onResume() {
         super.onResume();
 
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(MediaPlaybackService.META_CHANGED);
-        filter.addAction(MediaPlaybackService.QUEUE_CHANGED);
-        getActivity().registerReceiver(mStatusListener, filter);
+        PlaybackEvents.register(mStatusListener);
     }
 
     @Override
     public void onPause() {
-        getActivity().unregisterReceiver(mStatusListener);
+        PlaybackEvents.unregister(mStatusListener);
 
         super.onPause();
     }
@@ -217,9 +213,14 @@ public class PlayerHeaderFragment extends Fragment implements FragmentServiceCon
         }
     }
 
-    private final BroadcastReceiver mStatusListener = new BroadcastReceiver() {
+    private final PlaybackListener mStatusListener = new PlaybackListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onMetaChanged(PlaybackSnapshot state) {
+            update();
+        }
+
+        @Override
+        public void onQueueChanged(PlaybackSnapshot state) {
             update();
         }
     };
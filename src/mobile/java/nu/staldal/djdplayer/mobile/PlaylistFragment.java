@@ -168,22 +168,22 @@ public class PlaylistFragment extends CategoryFragment {
     public boolean onContextItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.playlist_play_all_now:
-                MusicUtils.playAll(getActivity(), fetchSongList(currentId));
+                MusicUtils.playAll(MusicContract.Playlist.getMembersUri(currentId), false);
                 return true;
 
             case R.id.playlist_play_all_next:
-                MusicUtils.queueNext(getActivity(), fetchSongList(currentId));
+                MusicUtils.queueNext(getActivity(), MusicContract.Playlist.getMembersUri(currentId), false);
                 return true;
 
             case R.id.playlist_queue_all:
-                MusicUtils.queue(getActivity(), fetchSongList(currentId));
+                MusicUtils.queue(MusicContract.Playlist.getMembersUri(currentId), false);
                 return true;
 
             case R.id.playlist_interleave_all:
                 Intent intent = item.getIntent();
                 int currentCount = intent.getIntExtra(CURRENT_COUNT, 0);
                 int newCount = intent.getIntExtra(NEW_COUNT, 0);
-                MusicUtils.interleave(getActivity(), fetchSongList(currentId), currentCount, newCount);
+                MusicUtils.interleave(MusicContract.Playlist.getMembersUri(currentId), false, currentCount, newCount);
                 return true;
 
             case R.id.playlist_new_playlist:
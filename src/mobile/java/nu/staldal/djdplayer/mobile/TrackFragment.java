@@ -48,6 +48,7 @@ import android.widget.TextView;
 import nu.staldal.djdplayer.ExportPlaylistTask;
 import nu.staldal.djdplayer.MusicAlphabetIndexer;
 import nu.staldal.djdplayer.MusicUtils;
+import nu.staldal.djdplayer.PlaybackSnapshot;
 import nu.staldal.djdplayer.R;
 import nu.staldal.djdplayer.SettingsActivity;
 import nu.staldal.djdplayer.ShufflePlaylistTask;
@@ -354,17 +355,17 @@ public class TrackFragment extends BrowserFragment implements PopupMenu.OnMenuIt
             }
 
             case R.id.tracks_play_all_now: {
-                MusicUtils.playAll(getActivity(), MusicUtils.getSongListForCursor(adapter.getCursor()));
+                MusicUtils.playAll(uri, false);
                 return true;
             }
 
             case R.id.tracks_play_all_next: {
-                MusicUtils.queueNext(getActivity(), MusicUtils.getSongListForCursor(adapter.getCursor()));
+                MusicUtils.queueNext(getActivity(), uri, false);
                 return true;
             }
 
             case R.id.tracks_queue_all: {
-                MusicUtils.queue(getActivity(), MusicUtils.getSongListForCursor(adapter.getCursor()));
+                MusicUtils.queue(uri, false);
                 return true;
             }
 
@@ -372,8 +373,7 @@ public class TrackFragment extends BrowserFragment implements PopupMenu.OnMenuIt
                 Intent intent = item.getIntent();
                 int currentCount = intent.getIntExtra(CURRENT_COUNT, 0);
                 int newCount = intent.getIntExtra(NEW_COUNT, 0);
-                long[] songs = MusicUtils.getSongListForCursor(adapter.getCursor());
-                MusicUtils.interleave(getActivity(), songs, currentCount, newCount);
+                MusicUtils.interleave(uri, false, currentCount, newCount);
                 return true;
             }
 
@@ -577,13 +577,11 @@ public class TrackFragment extends BrowserFragment implements PopupMenu.OnMenuIt
             long audioId = cursor.getLong(audioIdIdx);
 
             long playingId = -1;
-            if (MusicUtils.sService != null) {
-                playingId = MusicUtils.sService.getAudioId();
-            }
-
             long crossfadingId = -1;
             if (MusicUtils.sService != null) {
-                crossfadingId = MusicUtils.sService.getCrossfadeAudioId();
+                PlaybackSnapshot state = MusicUtils.sService.getState();
+                playingId = state.audioId;
+                crossfadingId = state.crossfadeAudioId;
             }
 
             if (audioId == playingId) {
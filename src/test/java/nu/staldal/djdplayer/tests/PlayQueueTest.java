@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import nu.staldal.djdplayer.LongHashSet;
+import nu.staldal.djdplayer.PlayQueue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class PlayQueueTest {
+
+    @Test
+    public void insertAndRemove() {
+        PlayQueue queue = new PlayQueue();
+        queue.setAll(new long[]{1, 2, 3, 4});
+        assertEquals(2, queue.insert(2, new long[]{10, 11}));
+        assertArrayEquals(new long[]{1, 2, 10, 11, 3, 4}, queue.toArray());
+        assertEquals(6, queue.insert(Integer.MAX_VALUE, new long[]{12}));
+        assertArrayEquals(new long[]{1, 2, 10, 11, 3, 4, 12}, queue.toArray());
+        queue.remove(0, 1);
+        assertArrayEquals(new long[]{10, 11, 3, 4, 12}, queue.toArray());
+        queue.remove(4, 4);
+        assertArrayEquals(new long[]{10, 11, 3, 4}, queue.toArray());
+        assertEquals(3, queue.get(2));
+    }
+
+    @Test
+    public void move() {
+        PlayQueue queue = new PlayQueue();
+        queue.setAll(new long[]{1, 2, 3, 4, 5});
+        queue.move(1, 3);
+        assertArrayEquals(new long[]{1, 3, 4, 2, 5}, queue.toArray());
+        queue.move(4, 0);
+        assertArrayEquals(new long[]{5, 1, 3, 4, 2}, queue.toArray());
+    }
+
+    @Test
+    public void moveBlock() {
+        PlayQueue queue = new PlayQueue();
+        queue.setAll(new long[]{0, 1, 2, 3, 4, 5, 6, 7});
+        queue.moveBlock(1, 3, 4);
+        assertArrayEquals(new long[]{0, 4, 5, 6, 1, 2, 3, 7}, queue.toArray());
+        queue.moveBlock(4, 6, 0);
+        assertArrayEquals(new long[]{1, 2, 3, 0, 4, 5, 6, 7}, queue.toArray());
+
+        long[] before = {0, 1, 2, 3, 4, 5, 6, 7};
+        queue.setAll(before);
+        queue.moveBlock(5, 7, 2);
+        long[] after = queue.toArray();
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(before[i], after[PlayQueue.positionAfterMove(i, 5, 7, 2)]);
+        }
+    }
+
+    @Test
+    public void interleave() {
+        PlayQueue queue = new PlayQueue();
+        queue.setAll(new long[]{1, 2, 3, 4, 5, 6});
+        queue.interleave(2, new long[][]{{10, 11, 12}, {20}}, new int[]{2, 1, 1});
+        assertArrayEquals(new long[]{1, 2, 3, 4, 10, 20, 5, 6, 11, 12}, queue.toArray());
+        assertEquals(1, queue.count(10));
+        assertArrayEquals(new int[]{5}, queue.positionsOf(20));
+
+        queue.uninterleave(2, new int[]{3, 1}, new int[]{2, 1, 1});
+        assertArrayEquals(new long[]{1, 2, 3, 4, 5, 6}, queue.toArray());
+        assertFalse(queue.contains(10));
+
+        queue.interleave(new long[]{7, 8}, 1, 2);
+        assertArrayEquals(new long[]{1, 7, 8, 2, 3, 4, 5, 6}, queue.toArray());
+    }
+
+    @Test
+    public void removeAll() {
+        PlayQueue queue = new PlayQueue();
+        queue.setAll(new long[]{1, 2, 3, 2, 4, 5, 1});
+        queue.insert(3, new long[]{6});
+        LongHashSet ids = new LongHashSet();
+        ids.addAll(new long[]{1, 2, 7});
+        assertEquals(4, queue.removeAll(ids));
+        assertArrayEquals(new long[]{3, 6, 4, 5}, queue.toArray());
+    }
+
+    @Test
+    public void uniqueify() {
+        PlayQueue queue = new PlayQueue();
+        queue.setAll(new long[]{1, 2, 3, 2, 4, 1, 3, 5});
+        int[] keep = {1, 2};
+        assertArrayEquals(new int[]{0, 3, 6}, queue.duplicatePositions(keep));
+        assertEquals(3, queue.uniqueify(keep));
+        assertArrayEquals(new long[]{2, 3, 4, 1, 5}, queue.toArray());
+        assertArrayEquals(new int[]{0, 1}, keep);
+
+        // undone by inserting the removed tracks again
+        PlayQueue undone = queue.copy();
+        undone.insertAt(new int[]{0, 3, 6}, new long[]{1, 2, 3});
+        assertArrayEquals(new long[]{1, 2, 3, 2, 4, 1, 3, 5}, undone.toArray());
+
+        keep = new int[]{-1, -1};
+        assertEquals(0, queue.duplicatePositions(keep).length);
+        assertEquals(0, queue.uniqueify(keep));
+        assertArrayEquals(new long[]{2, 3, 4, 1, 5}, queue.toArray());
+    }
+
+    @Test
+    public void index() {
+        Random random = new Random(3);
+        PlayQueue queue = new PlayQueue();
+        List<Long> expected = new ArrayList<>();
+        for (int round = 0; round < 2000; round++) {
+            int size = expected.size();
+            switch (random.nextInt(5)) {
+                case 0:
+                case 1: {
+                    long id = random.nextInt(50);
+                    int position = random.nextInt(size + 1);
+                    queue.insert(position, new long[]{id});
+                    expected.add(position, id);
+                    break;
+                }
+                case 2:
+                    if (size > 0) {
+                        int position = random.nextInt(size);
+                        queue.remove(position, position);
+                        expected.remove(position);
+                    }
+                    break;
+                case 3:
+                    if (size > 0) {
+                        int from = random.nextInt(size);
+                        int to = random.nextInt(size);
+                        queue.move(from, to);
+                        expected.add(to, expected.remove(from));
+                    }
+                    break;
+                case 4: {
+                    long id = random.nextInt(50);
+                    LongHashSet ids = new LongHashSet();
+                    ids.add(id);
+                    queue.removeAll(ids);
+                    while (expected.remove(id)) { }
+                    break;
+                }
+            }
+
+            long id = random.nextInt(50);
+            List<Integer> positions = new ArrayList<>();
+            for (int i = 0; i < expected.size(); i++) {
+                if (expected.get(i) == id) positions.add(i);
+            }
+            int[] actual = queue.positionsOf(id);
+            assertEquals(positions.size(), actual.length);
+            assertEquals(!positions.isEmpty(), queue.contains(id));
+            for (int i = 0; i < actual.length; i++) {
+                assertEquals((int) positions.get(i), actual[i]);
+            }
+        }
+    }
+
+    @Test
+    public void growAndShrink() {
+        PlayQueue queue = new PlayQueue();
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            queue.insert(i / 2, new long[]{i});
+            expected.add(i / 2, (long) i);
+        }
+        queue.remove(10, 989);
+        expected.subList(10, 990).clear();
+        assertEquals(expected.size(), queue.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals((long) expected.get(i), queue.get(i));
+        }
+        queue.clear();
+        assertEquals(0, queue.toArray().length);
+        queue.append(42);
+        assertArrayEquals(new long[]{42}, queue.toArray());
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import nu.staldal.djdplayer.MediaPlayback;
+import nu.staldal.djdplayer.PlaybackSnapshot;
+import org.junit.Test;
+
+public class PlaybackSnapshotTest {
+
+    @Test
+    public void positionAt() {
+        PlaybackSnapshot playing = snapshot(true, 10000, 2500, 1000, 1.0f);
+        assertEquals(2500, playing.positionAt(1000));
+        assertEquals(4000, playing.positionAt(2500));
+        assertEquals(10000, playing.positionAt(60000));
+
+        PlaybackSnapshot paused = snapshot(false, 10000, 2500, 1000, 0f);
+        assertEquals(2500, paused.positionAt(60000));
+
+        assertEquals(-1, snapshot(false, -1, -1, 0, 0f).positionAt(1000));
+        assertEquals(-1, PlaybackSnapshot.EMPTY.positionAt(1000));
+    }
+
+    private static PlaybackSnapshot snapshot(boolean playing, long duration, long position, long time, float speed) {
+        return new PlaybackSnapshot(1, 1, -1, -1, 0, -1, 1, MediaPlayback.REPEAT_NONE, playing,
+                duration, position, time, speed, null, -1, null, -1, null, -1, null, null, null);
+    }
+}
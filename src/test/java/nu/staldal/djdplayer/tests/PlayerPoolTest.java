@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import nu.staldal.djdplayer.PlayerPool;
+import org.junit.Test;
+
+public class PlayerPoolTest {
+
+    @Test
+    public void victim() {
+        PlayerPool pool = new PlayerPool(3);
+        // current, next, previous
+        long[] wanted = {20, 30, 10};
+
+        assertEquals(0, pool.victim(wanted, 0));
+        pool.set(0, 20);
+        assertEquals(1, pool.victim(wanted, 1, 0));
+        pool.set(1, 30);
+        pool.set(2, 10);
+        assertEquals(2, pool.victim(wanted, 1, 0));
+        assertEquals(-1, pool.victim(wanted, 2, 0));
+
+        // skipping forward, the previous track is no longer wanted
+        wanted = new long[]{30, 40, 20};
+        assertEquals(2, pool.victim(wanted, 1, 1));
+        pool.set(2, 40);
+        assertEquals(-1, pool.victim(wanted, 2, 1));
+
+        // the same track on two players
+        pool.set(2, 30);
+        assertEquals(2, pool.victim(wanted, 1, 1));
+    }
+
+    @Test
+    public void ready() {
+        PlayerPool pool = new PlayerPool(3);
+        pool.set(1, 30);
+        pool.setReady(1);
+        assertEquals(1, pool.find(30, -1, 0, false));
+
+        // recycled for another track, not ready until it has been prepared
+        pool.set(1, 40);
+        assertFalse(pool.isReady(1));
+        assertEquals(-1, pool.find(30, -1, 0, true));
+        assertEquals(-1, pool.find(40, -1, 0, false));
+        assertEquals(1, pool.find(40, -1, 0, true));
+        pool.setReady(1);
+        assertTrue(pool.isReady(1));
+        assertEquals(1, pool.find(40, -1, 0, false));
+
+        // preferred, but not the excluded one
+        pool.set(2, 40);
+        pool.setReady(2);
+        assertEquals(2, pool.find(40, 2, 0, false));
+        assertEquals(1, pool.find(40, 2, 2, false));
+
+        pool.set(2, -1);
+        pool.setReady(2);
+        assertFalse(pool.isReady(2));
+    }
+}
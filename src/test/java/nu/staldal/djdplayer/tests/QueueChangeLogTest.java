@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import nu.staldal.djdplayer.LongHashSet;
+import nu.staldal.djdplayer.PlayQueue;
+import nu.staldal.djdplayer.QueueChangeLog;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class QueueChangeLogTest {
+
+    @Test
+    public void catchUp() {
+        Random random = new Random(11);
+        PlayQueue queue = new PlayQueue();
+        QueueChangeLog log = new QueueChangeLog(8, 20);
+
+        long[] copy = new long[0];
+        int copySize = 0;
+        long version = 0;
+        int diffs = 0;
+        for (int round = 0; round < 2000; round++) {
+            int size = queue.size();
+            int modCount = queue.getModCount();
+            switch (random.nextInt(7)) {
+                case 0: {
+                    long[] ids = new long[1 + random.nextInt(4)];
+                    for (int i = 0; i < ids.length; i++) ids[i] = random.nextInt(100);
+                    int position = queue.insert(random.nextInt(size + 1), ids);
+                    log.inserted(queue, modCount, position, ids);
+                    break;
+                }
+                case 1:
+                    if (size > 0) {
+                        int first = random.nextInt(size);
+                        int last = Math.min(size - 1, first + random.nextInt(3));
+                        queue.remove(first, last);
+                        log.removed(queue, modCount, first, last);
+                    }
+                    break;
+                case 2:
+                    if (size > 1) {
+                        int first = random.nextInt(size);
+                        int last = Math.min(size - 1, first + random.nextInt(3));
+                        int to = random.nextInt(size - (last - first));
+                        if (to != first) {
+                            queue.moveBlock(first, last, to);
+                            log.moved(queue, modCount, first, last, to);
+                        }
+                    }
+                    break;
+                case 3:
+                    if (random.nextInt(10) == 0) {
+                        // not recorded, detected by the modification count
+                        queue.shuffle(random, -1);
+                    }
+                    break;
+                case 4:
+                    if (size > 0) {
+                        LongHashSet ids = new LongHashSet();
+                        ids.add(queue.get(random.nextInt(size)));
+                        ids.add(queue.get(random.nextInt(size)));
+                        int[] positions = new int[size];
+                        int count = 0;
+                        for (int i = 0; i < size; i++) {
+                            if (ids.contains(queue.get(i))) positions[count++] = i;
+                        }
+                        queue.removeAll(ids);
+                        log.removed(queue, modCount, Arrays.copyOf(positions, count));
+                    }
+                    break;
+                case 5: {
+                    long[] ids = new long[1 + random.nextInt(4)];
+                    int[] positions = new int[ids.length];
+                    int position = random.nextInt(size + 1);
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = random.nextInt(100);
+                        position += random.nextInt(2);
+                        positions[i] = Math.min(position, size + i);
+                        position = positions[i] + 1;
+                    }
+                    queue.insertAt(positions, ids);
+                    log.insertedAt(queue, modCount, positions, ids);
+                    break;
+                }
+                case 6: {
+                    QueueChangeLog.Diff diff = log.diff(version, queue);
+                    if (diff.changes != null) {
+                        int capacity = copySize;
+                        for (QueueChangeLog.Change change : diff.changes) capacity += change.growth();
+                        copy = Arrays.copyOf(copy, Math.max(capacity, copy.length));
+                        for (QueueChangeLog.Change change : diff.changes) {
+                            copySize = change.applyTo(copy, copySize);
+                        }
+                        diffs++;
+                    } else {
+                        assertNotNull(diff.queue);
+                        copy = diff.queue;
+                        copySize = copy.length;
+                    }
+                    version = diff.version;
+                    assertArrayEquals(queue.toArray(), Arrays.copyOf(copy, copySize));
+                    break;
+                }
+            }
+        }
+        assertTrue(diffs > 0);
+    }
+
+    @Test
+    public void tooFarBehind() {
+        PlayQueue queue = new PlayQueue();
+        QueueChangeLog log = new QueueChangeLog(2, 100);
+        long version = log.diff(0, queue).version;
+        for (int i = 0; i < 3; i++) {
+            int modCount = queue.getModCount();
+            queue.insert(0, new long[]{i});
+            log.inserted(queue, modCount, 0, new long[]{i});
+        }
+        QueueChangeLog.Diff diff = log.diff(version, queue);
+        assertNull(diff.changes);
+        assertArrayEquals(new long[]{2, 1, 0}, diff.queue);
+        assertArrayEquals(new QueueChangeLog.Change[0], log.diff(diff.version, queue).changes);
+    }
+}
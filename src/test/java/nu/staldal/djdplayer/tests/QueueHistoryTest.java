@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import nu.staldal.djdplayer.LongHashSet;
+import nu.staldal.djdplayer.PlayQueue;
+import nu.staldal.djdplayer.QueueHistory;
+import nu.staldal.djdplayer.QueueJournal;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class QueueHistoryTest {
+
+    @Test
+    public void undoAndRedo() throws IOException {
+        PlayQueue queue = new PlayQueue();
+        queue.setAll(new long[]{1, 2, 3, 4, 5, 6, 2});
+        QueueHistory history = new QueueHistory(10, 1024);
+        List<long[]> states = new ArrayList<>();
+        states.add(queue.toArray());
+
+        queue.insert(2, new long[]{10, 11});
+        history.add(new QueueHistory.Entry(QueueJournal.insertRecord(2, new long[]{10, 11}),
+                QueueJournal.removeRecord(2, 3), 0, 0));
+        states.add(queue.toArray());
+
+        queue.shuffle(new Random(5), 1);
+        history.add(new QueueHistory.Entry(QueueJournal.shuffleRecord(5, 1),
+                QueueJournal.unshuffleRecord(5, 1), 0, 0));
+        states.add(queue.toArray());
+
+        long[] removed = {10, 11};
+        int[] positions = {queue.positionsOf(10)[0], queue.positionsOf(11)[0]};
+        Arrays.sort(positions);
+        long[] removedInOrder = {queue.get(positions[0]), queue.get(positions[1])};
+        LongHashSet ids = new LongHashSet();
+        ids.addAll(removed);
+        queue.removeAll(ids);
+        history.add(new QueueHistory.Entry(QueueJournal.removeIdsRecord(removed),
+                QueueJournal.insertAtRecord(positions, removedInOrder), 0, 0));
+        states.add(queue.toArray());
+
+        for (int i = states.size() - 1; i > 0; i--) {
+            QueueHistory.Entry entry = history.undo();
+            QueueJournal.applyRecord(queue, entry.inverse);
+            assertArrayEquals(states.get(i - 1), queue.toArray());
+        }
+        assertFalse(history.canUndo());
+        assertNull(history.undo());
+
+        for (int i = 1; i < states.size(); i++) {
+            QueueHistory.Entry entry = history.redo();
+            QueueJournal.applyRecord(queue, entry.edit);
+            assertArrayEquals(states.get(i), queue.toArray());
+        }
+        assertFalse(history.canRedo());
+    }
+
+    @Test
+    public void bounded() {
+        QueueHistory history = new QueueHistory(2, 1024);
+        for (int i = 0; i < 3; i++) {
+            history.add(new QueueHistory.Entry(QueueJournal.moveRecord(0, i), QueueJournal.moveRecord(i, 0), 0, 0));
+        }
+        assertTrue(history.undo() != null);
+        assertTrue(history.undo() != null);
+        assertNull(history.undo());
+
+        history.add(new QueueHistory.Entry(QueueJournal.replaceRecord(new long[1000]),
+                QueueJournal.replaceRecord(new long[1000]), 0, 0));
+        assertFalse(history.canUndo());
+        assertFalse(history.canRedo());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import nu.staldal.djdplayer.PlayQueue;
+import nu.staldal.djdplayer.QueueJournal;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class QueueJournalTest {
+
+    @Test
+    public void replay() throws IOException {
+        File file = File.createTempFile("queue", ".journal");
+        try {
+            QueueJournal journal = new QueueJournal(file);
+            journal.reset(3);
+
+            PlayQueue queue = new PlayQueue();
+            queue.setAll(new long[]{1, 2, 3, 4, 5});
+            queue.insert(2, new long[]{10, 11});
+            journal.append(QueueJournal.insertRecord(2, new long[]{10, 11}));
+            queue.move(0, 4);
+            journal.append(QueueJournal.moveRecord(0, 4));
+            queue.remove(1, 2);
+            journal.append(QueueJournal.removeRecord(1, 2));
+            queue.shuffle(new Random(17), 2);
+            journal.append(QueueJournal.shuffleRecord(17, 2));
+            queue.interleave(new long[]{20, 21}, 2, 1);
+            journal.append(QueueJournal.interleaveFromRecord(0, new long[][]{{20, 21}}, new int[]{2, 1}));
+            queue.moveBlock(0, 2, 4);
+            journal.append(QueueJournal.moveBlockRecord(0, 2, 4));
+            queue.move(6, 1);
+            queue.move(2, 3);
+            journal.append(QueueJournal.movesRecord(new int[]{6, 2}, new int[]{1, 3}));
+            queue.interleave(3, new long[][]{{30, 31}, {40}}, new int[]{1, 2, 1});
+            journal.append(QueueJournal.interleaveFromRecord(3, new long[][]{{30, 31}, {40}}, new int[]{1, 2, 1}));
+            queue.uninterleave(3, new int[]{2, 1}, new int[]{1, 2, 1});
+            journal.append(QueueJournal.uninterleaveRecord(3, new int[]{2, 1}, new int[]{1, 2, 1}));
+
+            PlayQueue restored = new PlayQueue();
+            restored.setAll(new long[]{1, 2, 3, 4, 5});
+            assertEquals(9, journal.replay(restored, 3));
+            assertArrayEquals(queue.toArray(), restored.toArray());
+
+            PlayQueue other = new PlayQueue();
+            assertEquals(-1, journal.replay(other, 2));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void incompleteRecord() throws IOException {
+        File file = File.createTempFile("queue", ".journal");
+        try {
+            QueueJournal journal = new QueueJournal(file);
+            journal.reset(0);
+            journal.append(QueueJournal.removeRecord(0, 0));
+            ByteBuffer record = QueueJournal.insertRecord(0, new long[]{42});
+            long size = journal.size();
+            journal.append(record);
+
+            // A crash in the middle of an append
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size + 3);
+            raf.close();
+
+            PlayQueue queue = new PlayQueue();
+            queue.setAll(new long[]{1, 2});
+            assertEquals(1, journal.replay(queue, 0));
+            assertArrayEquals(new long[]{2}, queue.toArray());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import nu.staldal.djdplayer.QueueSnapshots;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class QueueSnapshotsTest {
+
+    @Test
+    public void saveLoadListDelete() throws IOException {
+        File dir = File.createTempFile("queues", "");
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+        try {
+            QueueSnapshots snapshots = new QueueSnapshots(dir);
+            assertTrue(snapshots.list().isEmpty());
+
+            snapshots.save(new QueueSnapshots.Snapshot("Warm-up", new long[]{5, 3, 1000000}, 7, 1, 12345));
+            snapshots.save(new QueueSnapshots.Snapshot("peak / 22:00", new long[]{42}, 7, 0, 0));
+            assertEquals(Arrays.asList("peak / 22:00", "Warm-up"), snapshots.list());
+
+            QueueSnapshots.Snapshot loaded = snapshots.load("Warm-up");
+            assertArrayEquals(new long[]{5, 3, 1000000}, loaded.ids);
+            assertEquals(7, loaded.cardId);
+            assertEquals(1, loaded.position);
+            assertEquals(12345, loaded.seek);
+
+            assertTrue(snapshots.delete("Warm-up"));
+            assertFalse(snapshots.delete("Warm-up"));
+            assertNull(snapshots.load("Warm-up"));
+            assertEquals(Arrays.asList("peak / 22:00"), snapshots.list());
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import nu.staldal.djdplayer.QueueStore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class QueueStoreTest {
+
+    @Test
+    public void encodeAndDecode() throws IOException {
+        long[] ids = new long[]{0, 1, 4711, 4712, 3, Long.MAX_VALUE, -1, 100000};
+        ByteBuffer buffer = QueueStore.encode(ids, 42, 7);
+        QueueStore.Snapshot snapshot = QueueStore.decode(buffer);
+        assertArrayEquals(ids, snapshot.ids);
+        assertEquals(42, snapshot.cardId);
+        assertEquals(7, snapshot.generation);
+    }
+
+    @Test
+    public void closeIdsAreCompact() {
+        long[] ids = new long[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 100000 + i;
+        }
+        // header + first id in 3 bytes + one byte for each following id
+        assertEquals(21 + 3 + 999, QueueStore.encode(ids, 0, 0).remaining());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws IOException {
+        ByteBuffer buffer = QueueStore.encode(new long[]{1, 2, 3}, 0, 0);
+        buffer.limit(buffer.limit() - 1);
+        QueueStore.decode(buffer);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import nu.staldal.djdplayer.QueueTimeline;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class QueueTimelineTest {
+
+    @Test
+    public void prefixSums() {
+        QueueTimeline timeline = new QueueTimeline();
+        timeline.setAll(new int[]{1000, 2000, 3000, 4000});
+        assertEquals(0, timeline.prefixSum(0));
+        assertEquals(3000, timeline.prefixSum(2));
+        assertEquals(10000, timeline.total());
+        assertEquals(5000, timeline.sum(1, 3));
+        assertEquals(0, timeline.sum(3, 1));
+    }
+
+    @Test
+    public void edits() {
+        Random random = new Random(7);
+        QueueTimeline timeline = new QueueTimeline();
+        List<Integer> expected = new ArrayList<>();
+        for (int round = 0; round < 3000; round++) {
+            int size = expected.size();
+            switch (random.nextInt(5)) {
+                case 0: {
+                    int[] durations = new int[1 + random.nextInt(3)];
+                    int position = random.nextInt(size + 1);
+                    for (int i = 0; i < durations.length; i++) {
+                        durations[i] = random.nextInt(600000);
+                        expected.add(position + i, durations[i]);
+                    }
+                    timeline.insert(position, durations);
+                    break;
+                }
+                case 1:
+                    if (size > 0) {
+                        int first = random.nextInt(size);
+                        int last = Math.min(size - 1, first + random.nextInt(3));
+                        timeline.remove(first, last);
+                        expected.subList(first, last + 1).clear();
+                    }
+                    break;
+                case 2:
+                    if (size > 0) {
+                        int from = random.nextInt(size);
+                        int to = random.nextInt(size);
+                        timeline.move(from, to);
+                        expected.add(to, expected.remove(from));
+                    }
+                    break;
+                case 3:
+                    if (size > 0) {
+                        int position = random.nextInt(size);
+                        int duration = random.nextInt(600000);
+                        timeline.set(position, duration);
+                        expected.set(position, duration);
+                        assertEquals(duration, timeline.get(position));
+                    }
+                    break;
+                case 4:
+                    if (size > 0) {
+                        int first = random.nextInt(size);
+                        int last = Math.min(size - 1, first + random.nextInt(3));
+                        int to = random.nextInt(size - (last - first));
+                        timeline.moveBlock(first, last, to);
+                        List<Integer> block = new ArrayList<>(expected.subList(first, last + 1));
+                        expected.subList(first, last + 1).clear();
+                        expected.addAll(to, block);
+                    }
+                    break;
+            }
+
+            if (random.nextInt(3) == 0) {
+                int position = random.nextInt(expected.size() + 1);
+                long sum = 0;
+                for (int i = 0; i < position; i++) {
+                    sum += expected.get(i);
+                }
+                assertEquals(sum, timeline.prefixSum(position));
+            }
+        }
+        assertEquals(expected.size(), timeline.size());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import nu.staldal.djdplayer.ShuffleEngine;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class ShuffleEngineTest {
+
+    @Test
+    public void keepsPositionAndTracks() {
+        long[] ids = new long[100];
+        for (int i = 0; i < ids.length; i++) ids[i] = i;
+        ShuffleEngine.shuffle(ids, 17, new Random(1));
+        assertEquals(17, ids[17]);
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) assertEquals(i, sorted[i]);
+    }
+
+    @Test
+    public void unbiased() {
+        // Count where the first item ends up in a list of four, every position should be equally likely
+        Random random = new Random(42);
+        int[] counts = new int[4];
+        int rounds = 40000;
+        for (int r = 0; r < rounds; r++) {
+            long[] ids = {0, 1, 2, 3};
+            ShuffleEngine.shuffle(ids, -1, random);
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == 0) counts[i]++;
+            }
+        }
+        for (int count : counts) {
+            assertEquals(rounds / 4.0, count, rounds / 100.0);
+        }
+    }
+
+    @Test
+    public void spacing() {
+        int artists = 10;
+        long[] ids = new long[artists * 20];
+        long[] groups = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+            groups[i] = i % artists;
+        }
+        ShuffleEngine.shuffleSpaced(ids, groups, 3, 0, new Random(7));
+        assertEquals(0, ids[0]);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i] % artists, groups[i]);
+            for (int j = Math.max(0, i - 3); j < i; j++) {
+                assertTrue("same artist at " + j + " and " + i, groups[i] != groups[j]);
+            }
+        }
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        long[] expected = new long[ids.length];
+        for (int i = 0; i < expected.length; i++) expected[i] = i;
+        assertArrayEquals(expected, sorted);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 Mikael Ståldal
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.staldal.djdplayer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import nu.staldal.djdplayer.VolumeFader;
+import org.junit.Test;
+
+public class VolumeFaderTest {
+
+    @Test
+    public void curves() {
+        VolumeFader fader = new VolumeFader(2);
+        fader.set(0, 1.0f);
+        fader.set(1, 0f);
+        fader.rampTo(0, 0f, 1000, VolumeFader.EQUAL_POWER, 0, null);
+        fader.rampTo(1, 1.0f, 1000, VolumeFader.EQUAL_POWER, 0, null);
+        for (long t = 0; t <= 1000; t += 100) {
+            float out = fader.volume(0, t);
+            float in = fader.volume(1, t);
+            assertEquals(1.0, out * out + in * in, 0.0001);
+        }
+
+        fader.set(0, 0f);
+        fader.rampTo(0, 1.0f, 1000, VolumeFader.LINEAR, 0, null);
+        assertEquals(0.5f, fader.volume(0, 500), 0.0001f);
+
+        fader.set(0, 0f);
+        fader.rampTo(0, 1.0f, 1000, VolumeFader.LOG, 0, null);
+        assertEquals(0f, fader.volume(0, 0), 0.0001f);
+        assertEquals(0.0316f, fader.volume(0, 500), 0.001f); // -30 dB
+        assertEquals(1.0f, fader.volume(0, 1000), 0.0001f);
+    }
+
+    @Test
+    public void retargetAndAdvance() {
+        VolumeFader fader = new VolumeFader(2);
+        final boolean[] done = new boolean[1];
+        fader.rampTo(0, 0f, 1000, VolumeFader.LINEAR, 0, null);
+        assertEquals(1, fader.advance(500));
+        assertEquals(0.5f, fader.volume(0, 500), 0.0001f);
+
+        // from where it is, not from where the previous ramp started
+        fader.rampTo(0, 1.0f, 500, VolumeFader.LINEAR, 500, () -> done[0] = true);
+        assertEquals(0.75f, fader.volume(0, 750), 0.0001f);
+        assertEquals(1, fader.advance(750));
+        assertFalse(done[0]);
+
+        // a late tick ends the ramp at its target
+        assertEquals(1, fader.advance(2000));
+        assertTrue(done[0]);
+        assertFalse(fader.isRamping());
+        assertEquals(0, fader.advance(2050));
+        assertEquals(1.0f, fader.volume(0, 2050), 0f);
+
+        fader.rampTo(1, 0f, 1000, VolumeFader.LINEAR, 0, null);
+        fader.cancel(1, 250);
+        assertFalse(fader.isRamping(1));
+        assertEquals(0.75f, fader.volume(1, 5000), 0.0001f);
+    }
+}
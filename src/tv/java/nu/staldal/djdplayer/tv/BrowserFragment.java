@@ -16,10 +16,7 @@
 package nu.staldal.djdplayer.tv;
 
 import android.app.LoaderManager;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.Loader;
 import android.media.audiofx.AudioEffect;
 import android.os.Bundle;
@@ -38,8 +35,10 @@ import android.widget.Toast;
 import nu.staldal.djdplayer.AboutActivity;
 import nu.staldal.djdplayer.FragmentServiceConnection;
 import nu.staldal.djdplayer.MediaPlayback;
-import nu.staldal.djdplayer.MediaPlaybackService;
 import nu.staldal.djdplayer.PickMusicFolderActivity;
+import nu.staldal.djdplayer.PlaybackEvents;
+import nu.staldal.djdplayer.PlaybackListener;
+import nu.staldal.djdplayer.PlaybackSnapshot;
 import nu.staldal.djdplayer.R;
 import nu.staldal.djdplayer.SettingsActivity;
 import nu.staldal.djdplayer.provider.MusicContract;
@@ -118,10 +117,7 @@ public class BrowserFragment extends BrowseFragment implements FragmentServiceCo
     public void onResume() {
         super.onResume();
 
-        IntentFilter f = new IntentFilter();
-        f.addAction(MediaPlaybackService.META_CHANGED);
-        f.addAction(MediaPlaybackService.QUEUE_CHANGED);
-        getActivity().registerReceiver(statusListener, f);
+        PlaybackEvents.register(statusListener);
     }
 
     @Override
@@ -185,13 +181,18 @@ public class BrowserFragment extends BrowseFragment implements FragmentServiceCo
 
     @Override
     public void onPause() {
-        getActivity().unregisterReceiver(statusListener);
+        PlaybackEvents.unregister(statusListener);
         super.onPause();
     }
 
-    private final BroadcastReceiver statusListener = new BroadcastReceiver() {
+    private final PlaybackListener statusListener = new PlaybackListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onMetaChanged(PlaybackSnapshot state) {
+            getLoaderManager().restartLoader(0, null, BrowserFragment.this);
+        }
+
+        @Override
+        public void onQueueChanged(PlaybackSnapshot state) {
             getLoaderManager().restartLoader(0, null, BrowserFragment.this);
         }
     };
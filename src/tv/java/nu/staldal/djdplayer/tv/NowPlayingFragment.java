@@ -16,10 +16,6 @@
 package nu.staldal.djdplayer.tv;
 
 import android.app.Fragment;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.support.annotation.Nullable;
@@ -31,7 +27,9 @@ import android.widget.ImageButton;
 import android.widget.TextView;
 import nu.staldal.djdplayer.FragmentServiceConnection;
 import nu.staldal.djdplayer.MediaPlayback;
-import nu.staldal.djdplayer.MediaPlaybackService;
+import nu.staldal.djdplayer.PlaybackEvents;
+import nu.staldal.djdplayer.PlaybackListener;
+import nu.staldal.djdplayer.PlaybackSnapshot;
 import nu.staldal.djdplayer.R;
 
 public class NowPlayingFragment extends Fragment implements FragmentServiceConnection {
@@ -81,16 +79,12 @@ public class NowPlayingFragment extends Fragment implements FragmentServiceConne
     public void onResume() {
         super.onResume();
 
-        IntentFilter f = new IntentFilter();
-        f.addAction(MediaPlaybackService.PLAYSTATE_CHANGED);
-        f.addAction(MediaPlaybackService.META_CHANGED);
-        f.addAction(MediaPlaybackService.QUEUE_CHANGED);
-        getActivity().registerReceiver(mStatusListener, f);
+        PlaybackEvents.register(mStatusListener);
     }
 
     @Override
     public void onPause() {
-        getActivity().unregisterReceiver(mStatusListener);
+        PlaybackEvents.unregister(mStatusListener);
         super.onPause();
     }
 
@@ -115,16 +109,20 @@ public class NowPlayingFragment extends Fragment implements FragmentServiceConne
         }
     }
 
-    private final BroadcastReceiver mStatusListener = new BroadcastReceiver() {
+    private final PlaybackListener mStatusListener = new PlaybackListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.getAction().equals(MediaPlaybackService.PLAYSTATE_CHANGED)) {
-                updateNowPlaying();
-            } else if (intent.getAction().equals(MediaPlaybackService.META_CHANGED)) {
-                updateNowPlaying();
-            } else if (intent.getAction().equals(MediaPlaybackService.QUEUE_CHANGED)) {
-                updateNowPlaying();
-            }
+        public void onPlayStateChanged(PlaybackSnapshot state) {
+            updateNowPlaying();
+        }
+
+        @Override
+        public void onMetaChanged(PlaybackSnapshot state) {
+            updateNowPlaying();
+        }
+
+        @Override
+        public void onQueueChanged(PlaybackSnapshot state) {
+            updateNowPlaying();
         }
     };
 
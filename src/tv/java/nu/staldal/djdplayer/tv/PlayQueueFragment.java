@@ -22,7 +22,6 @@ import android.content.AsyncTaskLoader;
 import android.content.Loader;
 import android.database.Cursor;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.support.annotation.Nullable;
 import android.support.v17.leanback.database.CursorMapper;
@@ -38,8 +37,12 @@ import android.view.ViewGroup;
 import nu.staldal.djdplayer.FragmentServiceConnection;
 import nu.staldal.djdplayer.MediaPlayback;
 import nu.staldal.djdplayer.PlayQueueCursor;
+import nu.staldal.djdplayer.PlaybackEvents;
+import nu.staldal.djdplayer.PlaybackListener;
+import nu.staldal.djdplayer.PlaybackSnapshot;
 import nu.staldal.djdplayer.R;
 import nu.staldal.djdplayer.SettingsActivity;
+import nu.staldal.djdplayer.SettingsSnapshot;
 import nu.staldal.leanback.ClickableItemBridgeAdapter;
 
 public class PlayQueueFragment extends Fragment implements
@@ -50,7 +53,8 @@ public class PlayQueueFragment extends Fragment implements
 
     private MediaPlayback service = null;
 
-    private CursorObjectAdapter adapter;
+    private SongRowPresenter presenter;
+    private PlayQueueAdapter adapter;
 
     @Nullable
     @Override
@@ -58,7 +62,9 @@ public class PlayQueueFragment extends Fragment implements
         View view = inflater.inflate(R.layout.tv_play_queue_fragment, container, false);
 
         VerticalGridView list = (VerticalGridView) view.findViewById(android.R.id.list);
-        adapter = new CursorObjectAdapter(new SongRowPresenter());
+        presenter = new SongRowPresenter();
+        presenter.setService(service);
+        adapter = new PlayQueueAdapter(presenter);
         list.setAdapter(new ClickableItemBridgeAdapter(adapter, this));
 
         return view;
@@ -67,9 +73,25 @@ public class PlayQueueFragment extends Fragment implements
     @Override
     public void onServiceConnected(MediaPlayback s) {
         service = s;
+        if (presenter != null) {
+            presenter.setService(s);
+        }
         getLoaderManager().initLoader(0, null, this);
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        PlaybackEvents.register(mStatusListener);
+    }
+
+    @Override
+    public void onPause() {
+        PlaybackEvents.unregister(mStatusListener);
+        super.onPause();
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         return new AsyncTaskLoader<Cursor>(getActivity()) {
@@ -126,8 +148,7 @@ public class PlayQueueFragment extends Fragment implements
         SongItem song = (SongItem)item;
 
         if (service != null) {
-            String clickOnSong = PreferenceManager.getDefaultSharedPreferences(getActivity()).getString(
-                    SettingsActivity.CLICK_ON_SONG, SettingsActivity.PLAY_NEXT);
+            String clickOnSong = SettingsSnapshot.get(getActivity()).clickOnSong;
             if (clickOnSong.equals(SettingsActivity.PLAY_NOW)) {
                 service.setQueuePosition(song.position);
             } else {
@@ -141,6 +162,46 @@ public class PlayQueueFragment extends Fragment implements
     @Override
     public void onServiceDisconnected() {
         service = null;
+        if (presenter != null) {
+            presenter.setService(null);
+        }
+    }
+
+    /**
+     * Rebinds the rows to update when the tracks start.
+     */
+    private final PlaybackListener mStatusListener = new PlaybackListener() {
+        @Override
+        public void onPlayStateChanged(PlaybackSnapshot state) {
+            adapter.refresh();
+        }
+
+        @Override
+        public void onMetaChanged(PlaybackSnapshot state) {
+            adapter.refresh();
+        }
+
+        @Override
+        public void onQueueChanged(PlaybackSnapshot state) {
+            adapter.refresh();
+        }
+
+        @Override
+        public void onPositionChanged(PlaybackSnapshot state) {
+            adapter.refresh();
+        }
+    };
+
+    private static class PlayQueueAdapter extends CursorObjectAdapter {
+        PlayQueueAdapter(Presenter presenter) {
+            super(presenter);
+        }
+
+        void refresh() {
+            if (size() > 0) {
+                notifyItemRangeChanged(0, size());
+            }
+        }
     }
 
 }
@@ -15,16 +15,20 @@
  */
 package nu.staldal.djdplayer.tv;
 
+import android.content.Context;
 import android.support.v17.leanback.widget.Presenter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
+import nu.staldal.djdplayer.MediaPlayback;
 import nu.staldal.djdplayer.MusicUtils;
 import nu.staldal.djdplayer.R;
 
 public class SongRowPresenter extends Presenter {
 
+    private MediaPlayback service = null;
+
     class ViewHolder extends Presenter.ViewHolder {
         final TextView title;
         final TextView artist;
@@ -38,6 +42,14 @@ public class SongRowPresenter extends Presenter {
         }
     }
 
+    /**
+     * Shows when the tracks start, for rows of the play queue. Asked each time a row is bound,
+     * so that it does not go stale.
+     */
+    public void setService(MediaPlayback service) {
+        this.service = service;
+    }
+
     @Override
     public ViewHolder onCreateViewHolder(ViewGroup parent) {
         LayoutInflater inflater = LayoutInflater.from(parent.getContext());
@@ -52,7 +64,15 @@ public class SongRowPresenter extends Presenter {
 
         viewHolder.title.setText(item.title);
         viewHolder.artist.setText(item.artist);
-        viewHolder.duration.setText(MusicUtils.formatDuration(viewHolder.view.getContext(), item.duration));
+        Context context = viewHolder.view.getContext();
+        String duration = MusicUtils.formatDuration(context, item.duration);
+        long timeUntil = service != null ? service.getTimeUntil(item.position) : -1;
+        if (timeUntil >= 0) {
+            viewHolder.duration.setText(context.getString(R.string.duration_and_starts_in, duration,
+                    MusicUtils.formatDuration(context, timeUntil)));
+        } else {
+            viewHolder.duration.setText(duration);
+        }
     }
 
     @Override